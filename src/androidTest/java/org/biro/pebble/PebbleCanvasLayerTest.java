@@ -0,0 +1,165 @@
+package org.biro.pebble;
+
+import android.test.AndroidTestCase;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Checks that the canvas layer sends only the commands that changed,
+ * splits long paths into commands that fit a patch, and keeps track of
+ * what the watch has when a patch is nacked.
+ */
+public class PebbleCanvasLayerTest extends AndroidTestCase {
+    private PebbleTestHarness h;
+    private PebbleWindow pw;
+    private PebbleCanvasLayer canvas;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        h = new PebbleTestHarness(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        h.quit();
+        super.tearDown();
+    }
+
+    private static void draw(PebbleCanvasLayer canvas, int x) {
+        canvas.begin();
+        canvas.setFillColor(1);
+        canvas.fillRect(0, 0, 144, 20);
+        canvas.drawLine(x, 0, x, 168);
+        canvas.end();
+    }
+
+    private void show(final int x) throws Exception {
+        h.run(new Runnable() {
+            @Override
+            public void run() {
+                pw = new PebbleWindow();
+                pw.setParent(h.pebble);
+                canvas = new PebbleCanvasLayer();
+                pw.addLayer(canvas);
+                draw(canvas, x);
+                pw.push(h.ctx);
+            }
+        });
+        assertTrue(h.settle());
+    }
+
+    private void redraw(final int x) throws Exception {
+        h.run(new Runnable() {
+            @Override
+            public void run() {
+                draw(canvas, x);
+                pw.update(h.ctx);
+            }
+        });
+        assertTrue(h.settle());
+    }
+
+    private List<PebbleDictionary> patches() {
+        List<PebbleDictionary> patches = new ArrayList<>();
+        for (PebbleDictionary pd : h.sent()) {
+            if (pd.getBytes(Pebble.KEY_ATTRIBUTE_CANVAS_OPS) != null) {
+                patches.add(pd);
+            }
+        }
+        return patches;
+    }
+
+    private static int length(PebbleDictionary pd) {
+        return pd.getBytes(Pebble.KEY_ATTRIBUTE_CANVAS_OPS).length;
+    }
+
+    public void testSendsOnlyChangedCommands() throws Exception {
+        show(10);
+        int full = length(patches().get(0));
+
+        h.clearSent();
+        redraw(20);
+        List<PebbleDictionary> patches = patches();
+        assertEquals(1, patches.size());
+        assertTrue(length(patches.get(0)) < full);
+
+        h.clearSent();
+        redraw(20);
+        assertEquals(0, patches().size());
+    }
+
+    public void testSplitsLongPaths() throws Exception {
+        final int[] points = new int[120];
+        for (int i = 0; i < points.length; ++i) {
+            points[i] = i;
+        }
+        h.run(new Runnable() {
+            @Override
+            public void run() {
+                pw = new PebbleWindow();
+                pw.setParent(h.pebble);
+                canvas = new PebbleCanvasLayer();
+                pw.addLayer(canvas);
+                canvas.begin();
+                canvas.drawPath(points, true);
+                canvas.end();
+                pw.push(h.ctx);
+            }
+        });
+        assertTrue(h.settle());
+
+        List<PebbleDictionary> patches = patches();
+        assertFalse(patches.isEmpty());
+        // 60 points at 23 a command, sharing end points, and the
+        // segment that closes the path.
+        long count = patches.get(0).getUnsignedIntegerAsLong(Pebble.KEY_ATTRIBUTE_CANVAS_COUNT);
+        assertEquals(4, count);
+        for (PebbleDictionary pd : patches) {
+            assertTrue(length(pd) <= 96);
+        }
+    }
+
+    public void testNackKeepsWatchState() throws Exception {
+        show(10);
+        int full = length(patches().get(0));
+
+        h.clearSent();
+        h.nack(1);
+        redraw(20);
+        h.retry();
+        assertTrue(h.settle());
+
+        List<PebbleDictionary> patches = patches();
+        assertEquals(2, patches.size());
+        // The nack didn't lose what the watch already had, so the resend
+        // is still just the line.
+        assertEquals(length(patches.get(0)), length(patches.get(1)));
+        assertTrue(length(patches.get(1)) < full);
+    }
+}
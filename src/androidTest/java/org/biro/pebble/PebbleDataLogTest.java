@@ -0,0 +1,188 @@
+package org.biro.pebble;
+
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Writes data logging sessions through PebbleDataLog and reads them back
+ * with PebbleDataLogReader, across segment rollover, resumed sessions and
+ * a restarted writer.
+ */
+public class PebbleDataLogTest extends AndroidTestCase {
+    private static final long TAG = 0x7e57;
+    private static final UUID LOG_UUID = UUID.fromString(PebbleTestHarness.UUID_STRING);
+    private static final long TIMEOUT_MS = 5000;
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = PebbleDataLog.tagDir(getContext().getFilesDir(), TAG);
+        delete(dir);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(dir);
+        super.tearDown();
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+
+    private static byte[] payload(int n, int size) {
+        byte[] b = new byte[size];
+        b[0] = (byte) n;
+        b[1] = (byte) (n >> 8);
+        return b;
+    }
+
+    // Reads until count records have come out, or the writer gives up.
+    private static List<Long> read(PebbleDataLogReader r, int count) throws Exception {
+        List<Long> values = new ArrayList<>();
+        long end = System.currentTimeMillis() + TIMEOUT_MS;
+        byte[] buf = new byte[2];
+        while (values.size() < count && System.currentTimeMillis() < end) {
+            if (!r.next()) {
+                Thread.sleep(10);
+                continue;
+            }
+            if (r.getType() == PebbleDataLog.RECORD_BYTES) {
+                r.getBytes(buf);
+                values.add((long) ((buf[0] & 0xff) | (buf[1] & 0xff) << 8));
+            } else {
+                values.add(r.getLong());
+            }
+        }
+        return values;
+    }
+
+    private static List<Long> range(long from, long to) {
+        List<Long> values = new ArrayList<>();
+        for (long v = from; v < to; ++v) {
+            values.add(v);
+        }
+        return values;
+    }
+
+    public void testReadsBackEveryType() throws Exception {
+        PebbleDataLog log = new PebbleDataLog(LOG_UUID);
+        log.receiveData(getContext(), LOG_UUID, 1L, TAG, payload(7, 10));
+        log.receiveData(getContext(), LOG_UUID, 1L, TAG, 0xfedcba9876L);
+        log.receiveData(getContext(), LOG_UUID, 1L, TAG, -5);
+        log.flush();
+
+        PebbleDataLogReader r = log.openReader(getContext(), TAG);
+        List<Long> values = read(r, 3);
+        assertEquals(3, values.size());
+        assertEquals(7L, (long) values.get(0));
+        assertEquals(0xfedcba9876L, (long) values.get(1));
+        assertEquals(-5L, (long) values.get(2));
+        assertFalse(r.next());
+        r.close();
+    }
+
+    public void testRollsOverSegments() throws Exception {
+        PebbleDataLog log = new PebbleDataLog(LOG_UUID);
+        // Over a segment's worth, so the writer has to start another.
+        int n = 2 * PebbleDataLog.SEGMENT_SIZE / 1000;
+        for (int i = 0; i < n; ++i) {
+            log.receiveData(getContext(), LOG_UUID, 1L, TAG, payload(i, 1000));
+        }
+        log.onFinishSession(getContext(), LOG_UUID, 1L, TAG);
+
+        PebbleDataLogReader r = log.openReader(getContext(), TAG);
+        assertEquals(range(0, n), read(r, n));
+        assertTrue(dir.list().length >= 2);
+        r.close();
+    }
+
+    public void testResumedSessionKeepsEarlierRecords() throws Exception {
+        PebbleDataLog log = new PebbleDataLog(LOG_UUID);
+        for (long i = 0; i < 10; ++i) {
+            log.receiveData(getContext(), LOG_UUID, 1L, TAG, i);
+        }
+        log.onFinishSession(getContext(), LOG_UUID, 1L, TAG);
+        PebbleDataLogReader r = log.openReader(getContext(), TAG);
+        assertEquals(range(0, 10), read(r, 10));
+
+        // A new process picks the session up where the watch left it.
+        PebbleDataLog restarted = new PebbleDataLog(LOG_UUID);
+        for (long i = 10; i < 20; ++i) {
+            restarted.receiveData(getContext(), LOG_UUID, 1L, TAG, i);
+        }
+        restarted.flush();
+        assertEquals(range(10, 20), read(r, 10));
+        r.close();
+
+        PebbleDataLogReader fresh = log.openReader(getContext(), TAG);
+        assertEquals(range(0, 20), read(fresh, 20));
+        fresh.close();
+    }
+
+    public void testReadsOlderSessionAfterNewerOne() throws Exception {
+        PebbleDataLog log = new PebbleDataLog(LOG_UUID);
+        PebbleDataLogReader r = log.openReader(getContext(), TAG);
+        log.receiveData(getContext(), LOG_UUID, 1L, TAG, 1L);
+        log.flush();
+        assertEquals(range(1, 2), read(r, 1));
+
+        log.receiveData(getContext(), LOG_UUID, 2L, TAG, 2L);
+        log.flush();
+        assertEquals(range(2, 3), read(r, 1));
+
+        // The first session is still going.
+        log.receiveData(getContext(), LOG_UUID, 1L, TAG, 3L);
+        log.flush();
+        assertEquals(range(3, 4), read(r, 1));
+        r.close();
+    }
+
+    public void testSkipsSegmentWithoutHeader() throws Exception {
+        assertTrue(dir.mkdirs());
+        // Left behind by a writer that died before writing the header.
+        assertTrue(new File(dir, PebbleDataLog.segmentName(1L, 0)).createNewFile());
+        PebbleDataLog log = new PebbleDataLog(LOG_UUID);
+        log.receiveData(getContext(), LOG_UUID, 1L, TAG, 5L);
+        log.flush();
+
+        PebbleDataLogReader r = log.openReader(getContext(), TAG);
+        assertEquals(range(5, 6), read(r, 1));
+        r.close();
+    }
+}
@@ -0,0 +1,141 @@
+package org.biro.pebble;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Registers Pebbles with the shared PebbleDispatcher and checks their
+ * slots, app UUIDs and receivers.
+ */
+public class PebbleDispatcherTest extends AndroidTestCase {
+    private static final String OTHER_UUID = "87654321-4321-4321-4321-210987654321";
+
+    private final List<Pebble> pebbles = new ArrayList<>();
+    private RecordingContext ctx;
+
+    // Keeps track of what's registered with it.
+    private static class RecordingContext extends ContextWrapper {
+        final List<BroadcastReceiver> receivers = new ArrayList<>();
+
+        RecordingContext(Context base) {
+            super(base);
+        }
+
+        @Override
+        public Context getApplicationContext() {
+            return this;
+        }
+
+        @Override
+        public Intent registerReceiver(BroadcastReceiver r, IntentFilter f) {
+            receivers.add(r);
+            return null;
+        }
+
+        @Override
+        public void unregisterReceiver(BroadcastReceiver r) {
+            // However many filters it was registered with.
+            while (receivers.remove(r)) {
+                continue;
+            }
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ctx = new RecordingContext(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (Pebble p : pebbles) {
+            PebbleDispatcher.getInstance().unregister(p);
+        }
+        super.tearDown();
+    }
+
+    private Pebble register(String uuid) throws Exception {
+        Pebble p = new Pebble();
+        p.setPebbleAppUUID(uuid);
+        pebbles.add(p);
+        PebbleDispatcher.getInstance().register(ctx, p);
+        return p;
+    }
+
+    private static int slot(Pebble p) {
+        return p.nextTransactionID() & 0xff;
+    }
+
+    public void testGivesEachPebbleItsOwnSlot() throws Exception {
+        Pebble a = register(PebbleTestHarness.UUID_STRING);
+        Pebble b = register(OTHER_UUID);
+        assertTrue(slot(a) != 0);
+        assertTrue(slot(b) != 0);
+        assertTrue(slot(a) != slot(b));
+        // Every id carries it.
+        assertEquals(slot(a), slot(a));
+    }
+
+    public void testRejectsSecondPebbleForSameApp() throws Exception {
+        register(PebbleTestHarness.UUID_STRING);
+        try {
+            register(PebbleTestHarness.UUID_STRING);
+            fail("registered two Pebbles for one app");
+        } catch (PebbleException e) {
+            // expected
+        }
+    }
+
+    public void testReusesSlotAfterUnregister() throws Exception {
+        Pebble a = register(PebbleTestHarness.UUID_STRING);
+        int slot = slot(a);
+        PebbleDispatcher.getInstance().unregister(a);
+        Pebble b = register(PebbleTestHarness.UUID_STRING);
+        assertEquals(slot, slot(b));
+    }
+
+    public void testRegistersAndUnregistersDataLogs() throws Exception {
+        Pebble a = register(PebbleTestHarness.UUID_STRING);
+        Pebble b = register(OTHER_UUID);
+        assertTrue(ctx.receivers.contains(a.getDataLog()));
+        assertTrue(ctx.receivers.contains(b.getDataLog()));
+
+        PebbleDispatcher.getInstance().unregister(a);
+        assertFalse(ctx.receivers.contains(a.getDataLog()));
+        assertTrue(ctx.receivers.contains(b.getDataLog()));
+
+        PebbleDispatcher.getInstance().unregister(b);
+        // The shared receivers went with the last Pebble.
+        assertTrue(ctx.receivers.isEmpty());
+    }
+}
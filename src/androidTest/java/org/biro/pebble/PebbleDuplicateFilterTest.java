@@ -0,0 +1,64 @@
+package org.biro.pebble;
+
+import junit.framework.TestCase;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Checks that redelivered packets are recognised.
+ */
+public class PebbleDuplicateFilterTest extends TestCase {
+
+    public void testRepeatIsDuplicate() {
+        PebbleDuplicateFilter f = new PebbleDuplicateFilter(4);
+        assertFalse(f.isDuplicate(1, 100));
+        assertTrue(f.isDuplicate(1, 100));
+        assertFalse(f.isDuplicate(1, 101));
+        assertFalse(f.isDuplicate(2, 100));
+    }
+
+    // PebbleKit's id wraps, so only both ids together identify a packet.
+    public void testNegativeIds() {
+        PebbleDuplicateFilter f = new PebbleDuplicateFilter(4);
+        assertFalse(f.isDuplicate(-1, -1));
+        assertFalse(f.isDuplicate(-1, 0));
+        assertFalse(f.isDuplicate(0, -1));
+        assertTrue(f.isDuplicate(-1, -1));
+    }
+
+    public void testForgetsOldest() {
+        PebbleDuplicateFilter f = new PebbleDuplicateFilter(2);
+        assertFalse(f.isDuplicate(1, 1));
+        assertFalse(f.isDuplicate(1, 2));
+        assertFalse(f.isDuplicate(1, 3));
+        assertFalse(f.isDuplicate(1, 1));
+        assertTrue(f.isDuplicate(1, 3));
+    }
+
+    public void testClear() {
+        PebbleDuplicateFilter f = new PebbleDuplicateFilter(4);
+        assertFalse(f.isDuplicate(1, 1));
+        f.clear();
+        assertFalse(f.isDuplicate(1, 1));
+    }
+}
@@ -0,0 +1,180 @@
+package org.biro.pebble;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Checks that the offline journal keeps the newest values, merges them
+ * into few packets and only reloads packets without handles.
+ */
+public class PebbleJournalTest extends TestCase {
+
+    private static PebbleDictionary apply(int window, int layer, int key, int value) {
+        PebbleDictionary pd = new PebbleDictionary();
+        pd.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_APPLY_ATTRIBUTES);
+        if (window >= 0) {
+            pd.addUint32(Pebble.KEY_WINDOW_ID, window);
+        }
+        if (layer >= 0) {
+            pd.addUint32(Pebble.KEY_TEXT_LAYER_ID, layer);
+        }
+        pd.addUint32(key, value);
+        return pd;
+    }
+
+    public void testNewestValueWins() throws Exception {
+        PebbleJournal j = new PebbleJournal(4);
+        long key = Pebble.queueKey(1, 2, Pebble.KEY_ATTRIBUTE_FG_COLOR);
+        PebbleFuture first = new PebbleFuture();
+        PebbleFuture second = new PebbleFuture();
+        assertTrue(j.record(key, apply(1, 2, Pebble.KEY_ATTRIBUTE_FG_COLOR, 1), first));
+        assertTrue(j.record(key, apply(1, 2, Pebble.KEY_ATTRIBUTE_FG_COLOR, 2), second));
+
+        List<PebbleSendQueue.Entry> out = j.drain();
+        assertEquals(1, out.size());
+        assertEquals(2, (long) out.get(0).data.getUnsignedIntegerAsLong(
+                Pebble.KEY_ATTRIBUTE_FG_COLOR));
+        assertEquals(2, out.get(0).futures.size());
+        assertSame(first, out.get(0).futures.get(0));
+        assertSame(second, out.get(0).futures.get(1));
+        assertTrue(j.isEmpty());
+    }
+
+    // Different attributes of one layer go out in one packet.
+    public void testMergesSameLayerAndMethod() throws Exception {
+        PebbleJournal j = new PebbleJournal(8);
+        j.record(Pebble.queueKey(1, 2, Pebble.KEY_ATTRIBUTE_FG_COLOR),
+                apply(1, 2, Pebble.KEY_ATTRIBUTE_FG_COLOR, 3), new PebbleFuture());
+        j.record(Pebble.queueKey(1, 2, Pebble.KEY_ATTRIBUTE_BG_COLOR),
+                apply(1, 2, Pebble.KEY_ATTRIBUTE_BG_COLOR, 4), new PebbleFuture());
+        j.record(Pebble.queueKey(1, 3, Pebble.KEY_ATTRIBUTE_FG_COLOR),
+                apply(1, 3, Pebble.KEY_ATTRIBUTE_FG_COLOR, 5), new PebbleFuture());
+
+        List<PebbleSendQueue.Entry> out = j.drain();
+        assertEquals(2, out.size());
+        PebbleDictionary merged = out.get(0).data;
+        assertEquals(3, (long) merged.getUnsignedIntegerAsLong(Pebble.KEY_ATTRIBUTE_FG_COLOR));
+        assertEquals(4, (long) merged.getUnsignedIntegerAsLong(Pebble.KEY_ATTRIBUTE_BG_COLOR));
+        assertEquals(2, out.get(0).futures.size());
+        assertEquals(3, (long) out.get(1).data.getUnsignedIntegerAsLong(Pebble.KEY_TEXT_LAYER_ID));
+    }
+
+    public void testUnkeyedNotMerged() throws Exception {
+        PebbleJournal j = new PebbleJournal(8);
+        j.record(0, apply(1, 2, Pebble.KEY_ATTRIBUTE_FG_COLOR, 1), new PebbleFuture());
+        j.record(0, apply(1, 2, Pebble.KEY_ATTRIBUTE_BG_COLOR, 2), new PebbleFuture());
+        assertEquals(2, j.drain().size());
+    }
+
+    public void testFull() throws Exception {
+        PebbleJournal j = new PebbleJournal(1);
+        long key = Pebble.queueKey(1, 2, Pebble.KEY_ATTRIBUTE_FG_COLOR);
+        assertTrue(j.record(key, apply(1, 2, Pebble.KEY_ATTRIBUTE_FG_COLOR, 1), new PebbleFuture()));
+        assertFalse(j.record(0, apply(1, 2, Pebble.KEY_ATTRIBUTE_BG_COLOR, 2), new PebbleFuture()));
+        // Replacing a kept packet still fits.
+        assertTrue(j.record(key, apply(1, 2, Pebble.KEY_ATTRIBUTE_FG_COLOR, 2), new PebbleFuture()));
+    }
+
+    public void testRemoveHandles() throws Exception {
+        PebbleJournal j = new PebbleJournal(4);
+        j.record(0, apply(1, 2, Pebble.KEY_ATTRIBUTE_FG_COLOR, 1), new PebbleFuture());
+        j.record(0, apply(Pebble.ROOT_WINDOW_HANDLE, -1, Pebble.KEY_ATTRIBUTE_FG_COLOR, 2),
+                new PebbleFuture());
+
+        assertEquals(1, j.removeHandles().size());
+        List<PebbleSendQueue.Entry> out = j.drain();
+        assertEquals(1, out.size());
+        assertEquals(2, (long) out.get(0).data.getUnsignedIntegerAsLong(
+                Pebble.KEY_ATTRIBUTE_FG_COLOR));
+    }
+
+    // Only packets without handles come back in the next process.
+    public void testReloadKeepsOnlyHandleFree() throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"));
+        File f = new File(dir, "PebbleJournalTest.journal");
+        File copy = new File(dir, "PebbleJournalTest.copy");
+        f.delete();
+        try {
+            PebbleJournal j = new PebbleJournal(4);
+            j.setFile(f);
+            j.record(Pebble.queueKey(1, 2, Pebble.KEY_ATTRIBUTE_FG_COLOR),
+                    apply(1, 2, Pebble.KEY_ATTRIBUTE_FG_COLOR, 1), new PebbleFuture());
+            j.record(Pebble.queueKey(Pebble.ROOT_WINDOW_HANDLE, 0, Pebble.KEY_ATTRIBUTE_FG_COLOR),
+                    apply(Pebble.ROOT_WINDOW_HANDLE, -1, Pebble.KEY_ATTRIBUTE_FG_COLOR, 7),
+                    new PebbleFuture());
+
+            // The journal is saved in the background, so load copies of
+            // the file until one has the second packet.
+            List<PebbleSendQueue.Entry> out = null;
+            long deadline = System.currentTimeMillis() + 5000;
+            while (System.currentTimeMillis() < deadline) {
+                if (f.exists()) {
+                    copy(f, copy);
+                    PebbleJournal next = new PebbleJournal(4);
+                    next.setFile(copy);
+                    out = next.drain();
+                    if (!out.isEmpty()) {
+                        break;
+                    }
+                }
+                Thread.sleep(10);
+            }
+            assertNotNull(out);
+            assertEquals(1, out.size());
+            assertEquals(7, (long) out.get(0).data.getUnsignedIntegerAsLong(
+                    Pebble.KEY_ATTRIBUTE_FG_COLOR));
+        } finally {
+            f.delete();
+            copy.delete();
+        }
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                byte[] b = new byte[4096];
+                int n;
+                while ((n = in.read(b)) > 0) {
+                    out.write(b, 0, n);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
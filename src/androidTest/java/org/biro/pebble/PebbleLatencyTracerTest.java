@@ -0,0 +1,75 @@
+package org.biro.pebble;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Checks that the latency tracer matches acks and responses to the
+ * update a click caused.
+ */
+public class PebbleLatencyTracerTest extends TestCase {
+
+    // PebbleKit acks carry only the low byte of the transaction id.
+    public void testAckMatchesLowByte() throws Exception {
+        PebbleLatencyTracer l = new PebbleLatencyTracer(4);
+        l.clicked(1);
+        l.textSent(0x1234);
+        Thread.sleep(5);
+        l.acked(0x34);
+        Thread.sleep(5);
+        l.applied(0x1234);
+
+        List<PebbleLatencyTracer.Span> spans = new ArrayList<>();
+        l.getSpans(spans);
+        assertEquals(1, spans.size());
+        assertEquals(1, spans.get(0).getButton());
+        assertTrue(spans.get(0).getLinkTime() > 0);
+        assertTrue(spans.get(0).getWatchTime() < spans.get(0).getTotal());
+    }
+
+    public void testAckForOtherPacketIgnored() throws Exception {
+        PebbleLatencyTracer l = new PebbleLatencyTracer(4);
+        l.clicked(1);
+        l.textSent(0x1234);
+        l.acked(0x35);
+        l.applied(0x1234);
+
+        List<PebbleLatencyTracer.Span> spans = new ArrayList<>();
+        l.getSpans(spans);
+        assertEquals(1, spans.size());
+        assertEquals(0, spans.get(0).getLinkTime());
+    }
+
+    // An update with no click before it isn't traced.
+    public void testUpdateWithoutClick() throws Exception {
+        PebbleLatencyTracer l = new PebbleLatencyTracer(4);
+        l.textSent(0x1234);
+        l.acked(0x34);
+        l.applied(0x1234);
+        assertEquals(0, l.getCompleted());
+    }
+}
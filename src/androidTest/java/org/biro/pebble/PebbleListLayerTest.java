@@ -0,0 +1,234 @@
+package org.biro.pebble;
+
+import android.test.AndroidTestCase;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Checks which rows a list layer sends, in what order, and how it copes
+ * with long rows, huge adapters and rows that change under an apply.
+ */
+public class PebbleListLayerTest extends AndroidTestCase {
+    private PebbleTestHarness h;
+    private PebbleWindow pw;
+    private PebbleListLayer list;
+    private final Rows adapter = new Rows();
+
+    private static class Rows implements PebbleListLayer.Adapter {
+        int count = 100;
+        String[] overrides = new String[0];
+
+        @Override
+        public int getCount() {
+            return count;
+        }
+
+        @Override
+        public String getRow(int position) {
+            if (position < overrides.length && overrides[position] != null) {
+                return overrides[position];
+            }
+            return "row " + position;
+        }
+    }
+
+    // A row as sent: [slot][position u16][length][utf-8].
+    private static class Row {
+        int slot;
+        int position;
+        String text;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        h = new PebbleTestHarness(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        h.quit();
+        super.tearDown();
+    }
+
+    private void show() throws Exception {
+        h.run(new Runnable() {
+            @Override
+            public void run() {
+                pw = new PebbleWindow();
+                pw.setParent(h.pebble);
+                list = new PebbleListLayer(adapter, 3, 2);
+                pw.addLayer(list);
+                pw.push(h.ctx);
+            }
+        });
+        assertTrue(h.settle());
+    }
+
+    private void setTop(final int top) throws Exception {
+        h.run(new Runnable() {
+            @Override
+            public void run() {
+                list.setTop(top);
+                pw.update(h.ctx);
+            }
+        });
+        assertTrue(h.settle());
+    }
+
+    private List<Row> rows() throws Exception {
+        List<Row> rows = new ArrayList<>();
+        for (PebbleDictionary pd : h.sent()) {
+            byte[] b = pd.getBytes(Pebble.KEY_ATTRIBUTE_LIST_ROWS);
+            if (b == null) {
+                continue;
+            }
+            assertTrue(b.length <= 96);
+            int i = 0;
+            while (i < b.length) {
+                Row r = new Row();
+                r.slot = b[i] & 0xff;
+                r.position = (b[i + 1] & 0xff) | (b[i + 2] & 0xff) << 8;
+                int len = b[i + 3] & 0xff;
+                r.text = new String(b, i + 4, len, "UTF-8");
+                rows.add(r);
+                i += 4 + len;
+            }
+        }
+        return rows;
+    }
+
+    private List<Integer> positions() throws Exception {
+        List<Integer> positions = new ArrayList<>();
+        for (Row r : rows()) {
+            assertEquals(r.position % 7, r.slot);
+            positions.add(r.position);
+        }
+        return positions;
+    }
+
+    public void testSendsVisibleRowsFirst() throws Exception {
+        show();
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), positions());
+    }
+
+    public void testScrollingSendsOnlyNewRows() throws Exception {
+        show();
+        h.clearSent();
+        setTop(10);
+        // Visible, then ahead of the scroll, then behind it, nearest first.
+        assertEquals(Arrays.asList(10, 11, 12, 13, 14, 9, 8), positions());
+
+        h.clearSent();
+        setTop(11);
+        assertEquals(Arrays.asList(15), positions());
+
+        h.clearSent();
+        setTop(10);
+        assertEquals(Arrays.asList(8), positions());
+    }
+
+    public void testCutsLongRowsBetweenCharacters() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 300) {
+            sb.append('é');
+        }
+        adapter.overrides = new String[]{null, sb.toString()};
+        show();
+        List<Row> rows = rows();
+        assertEquals(5, rows.size());
+        Row r = rows.get(1);
+        assertEquals(1, r.position);
+        assertTrue(r.text.length() > 0);
+        assertTrue(sb.toString().startsWith(r.text));
+        assertFalse(h.pebble.isBusy());
+    }
+
+    public void testClampsHugeAdapters() throws Exception {
+        adapter.count = 70000;
+        show();
+        h.clearSent();
+        setTop(70000);
+        for (PebbleDictionary pd : h.sent()) {
+            Long count = pd.getUnsignedIntegerAsLong(Pebble.KEY_ATTRIBUTE_LIST_COUNT);
+            if (count != null) {
+                assertEquals(PebbleListLayer.MAX_COUNT, (long) count);
+            }
+        }
+        assertEquals(PebbleListLayer.MAX_COUNT - 3, list.getTop());
+        for (int p : positions()) {
+            assertTrue(p < PebbleListLayer.MAX_COUNT);
+        }
+    }
+
+    public void testRowChangedDuringApplyGoesAgain() throws Exception {
+        show();
+        h.clearSent();
+        h.run(new Runnable() {
+            @Override
+            public void run() {
+                list.setTop(10);
+                pw.update(h.ctx);
+                // The apply carrying the old row 10 is on its way.
+                adapter.overrides = new String[11];
+                adapter.overrides[10] = "changed";
+                list.notifyRowChanged(10);
+            }
+        });
+        assertTrue(h.settle());
+        List<Row> rows = rows();
+        Row last = rows.get(rows.size() - 1);
+        assertEquals(10, last.position);
+        assertEquals("changed", last.text);
+    }
+
+    public void testDataSetChangedDuringApplyGoesAgain() throws Exception {
+        show();
+        h.clearSent();
+        h.run(new Runnable() {
+            @Override
+            public void run() {
+                list.setTop(10);
+                pw.update(h.ctx);
+                adapter.overrides = new String[20];
+                Arrays.fill(adapter.overrides, "new");
+                list.notifyDataSetChanged();
+            }
+        });
+        assertTrue(h.settle());
+        List<Row> rows = rows();
+        // Every wanted row went again with its new text.
+        List<Integer> again = new ArrayList<>();
+        for (Row r : rows.subList(7, rows.size())) {
+            assertEquals("new", r.text);
+            again.add(r.position);
+        }
+        assertEquals(Arrays.asList(10, 11, 12, 13, 14, 9, 8), again);
+    }
+}
@@ -0,0 +1,94 @@
+package org.biro.pebble;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import junit.framework.TestCase;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Checks how incoming dictionaries are decoded into pooled messages.
+ */
+public class PebbleMessageTest extends TestCase {
+
+    public void testDecodesEveryField() throws Exception {
+        PebbleDictionary pd = new PebbleDictionary();
+        pd.addUint32(Pebble.KEY_STATUS, Pebble.STATUS_ERR);
+        pd.addUint32(Pebble.KEY_TRANSACTION_ID, 0x1234);
+        pd.addUint32(Pebble.KEY_RETURN_VALUE, 7);
+        pd.addUint32(Pebble.KEY_ERROR_CODE, Pebble.ENOWINDOW);
+        pd.addUint32(Pebble.KEY_CLICK, 0x21);
+
+        PebbleMessage m = new PebbleMessage();
+        m.decode(pd);
+        assertTrue(m.hasStatus);
+        assertEquals(Pebble.STATUS_ERR, m.status);
+        assertTrue(m.hasTransactionId);
+        assertEquals(0x1234, m.transactionId);
+        assertTrue(m.hasReturnValue);
+        assertEquals(7, m.returnValue);
+        assertTrue(m.hasErrorCode);
+        assertEquals(Pebble.ENOWINDOW, m.errorCode);
+        assertTrue(m.hasClick);
+        assertEquals(0x21, m.click);
+    }
+
+    public void testMissingFields() throws Exception {
+        PebbleDictionary pd = new PebbleDictionary();
+        pd.addUint32(Pebble.KEY_STATUS, Pebble.STATUS_OK);
+
+        PebbleMessage m = new PebbleMessage();
+        m.decode(pd);
+        assertTrue(m.hasStatus);
+        assertFalse(m.hasTransactionId);
+        assertFalse(m.hasReturnValue);
+        assertFalse(m.hasErrorCode);
+        assertFalse(m.hasClick);
+    }
+
+    public void testSyntheticErrorsSurviveUnsignedEncoding() throws Exception {
+        PebbleDictionary pd = new PebbleDictionary();
+        pd.addUint32(Pebble.KEY_ERROR_CODE, Pebble.ENACK_RECEIVED);
+
+        PebbleMessage m = new PebbleMessage();
+        m.decode(pd);
+        assertEquals(Pebble.ENACK_RECEIVED, m.errorCode);
+    }
+
+    public void testRecycleClearsAndReuses() throws Exception {
+        PebbleDictionary pd = new PebbleDictionary();
+        pd.addUint32(Pebble.KEY_STATUS, Pebble.STATUS_OK);
+        pd.addUint32(Pebble.KEY_TRANSACTION_ID, 3);
+
+        PebbleMessage m = PebbleMessage.obtain();
+        m.decode(pd);
+        m.recycle();
+        assertFalse(m.hasStatus);
+        assertFalse(m.hasTransactionId);
+        assertEquals(0, m.transactionId);
+
+        PebbleMessage again = PebbleMessage.obtain();
+        assertSame(m, again);
+        again.recycle();
+    }
+}
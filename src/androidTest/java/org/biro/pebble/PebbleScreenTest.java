@@ -0,0 +1,82 @@
+package org.biro.pebble;
+
+import junit.framework.TestCase;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Checks which layers PebbleScreen keeps from one screen to the next.
+ */
+public class PebbleScreenTest extends TestCase {
+
+    private int created;
+
+    private PebbleScreen.Node<PebbleTextLayer> text() {
+        return new PebbleScreen.Node<>("key", PebbleTextLayer.class,
+                new PebbleScreen.Binder<PebbleTextLayer>() {
+                    @Override
+                    public PebbleTextLayer create() {
+                        created++;
+                        return new PebbleTextLayer();
+                    }
+
+                    @Override
+                    public void bind(PebbleTextLayer layer) {
+                        layer.setText("bound");
+                    }
+                });
+    }
+
+    public void testKeepsSameClass() {
+        PebbleTextLayer old = new PebbleTextLayer();
+        assertSame(old, text().bind(old));
+        assertEquals(0, created);
+    }
+
+    public void testKeepsSubclass() {
+        PebbleTemplateLayer old = new PebbleTemplateLayer();
+        assertSame(old, text().bind(old));
+        assertEquals(0, created);
+    }
+
+    public void testReplacesOtherClass() {
+        PebbleLayer l = text().bind(new PebbleCanvasLayer());
+        assertTrue(l instanceof PebbleTextLayer);
+        assertEquals(1, created);
+    }
+
+    public void testCreatesNew() {
+        assertNotNull(text().bind(null));
+        assertEquals(1, created);
+    }
+
+    public void testDuplicateKey() {
+        PebbleScreen s = new PebbleScreen().text("a", "one");
+        try {
+            s.text("a", "two");
+            fail("duplicate key accepted");
+        } catch (IllegalArgumentException e) {
+            // expected.
+        }
+    }
+}
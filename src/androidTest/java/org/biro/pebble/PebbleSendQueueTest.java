@@ -0,0 +1,119 @@
+package org.biro.pebble;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Checks how the outbound queue orders, coalesces and rejects packets.
+ */
+public class PebbleSendQueueTest extends TestCase {
+
+    private static PebbleDictionary packet(int value) {
+        PebbleDictionary pd = new PebbleDictionary();
+        pd.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_APPLY_ATTRIBUTES);
+        pd.addUint32(Pebble.KEY_ATTRIBUTE_FG_COLOR, value);
+        return pd;
+    }
+
+    public void testKeepsOrder() throws Exception {
+        PebbleSendQueue q = new PebbleSendQueue(Pebble.QUEUE_REJECT, 4);
+        PebbleDictionary a = packet(1);
+        PebbleDictionary b = packet(2);
+        assertTrue(q.add(0, a, new PebbleFuture(), false));
+        assertTrue(q.add(0, b, new PebbleFuture(), false));
+        assertSame(a, q.poll().data);
+        assertSame(b, q.poll().data);
+        assertNull(q.poll());
+        assertTrue(q.isEmpty());
+    }
+
+    public void testRejectsWhenFull() throws Exception {
+        PebbleSendQueue q = new PebbleSendQueue(Pebble.QUEUE_REJECT, 2);
+        assertTrue(q.add(0, packet(1), new PebbleFuture(), false));
+        assertTrue(q.add(0, packet(2), new PebbleFuture(), false));
+        assertFalse(q.add(0, packet(3), new PebbleFuture(), false));
+    }
+
+    public void testCoalescesSameKey() throws Exception {
+        PebbleSendQueue q = new PebbleSendQueue(Pebble.QUEUE_COALESCE, 2);
+        long key = Pebble.queueKey(1, 2, Pebble.KEY_ATTRIBUTE_FG_COLOR);
+        PebbleFuture first = new PebbleFuture();
+        PebbleFuture second = new PebbleFuture();
+        PebbleDictionary newest = packet(2);
+        assertTrue(q.add(key, packet(1), first, false));
+        assertTrue(q.add(key, newest, second, false));
+
+        PebbleSendQueue.Entry e = q.poll();
+        assertSame(newest, e.data);
+        assertEquals(2, e.futures.size());
+        assertSame(first, e.futures.get(0));
+        assertSame(second, e.futures.get(1));
+        assertNull(q.poll());
+    }
+
+    // Once it's sent, a new packet with the same key queues again.
+    public void testCoalescesOnlyQueued() throws Exception {
+        PebbleSendQueue q = new PebbleSendQueue(Pebble.QUEUE_COALESCE, 2);
+        long key = Pebble.queueKey(1, 2, Pebble.KEY_ATTRIBUTE_FG_COLOR);
+        assertTrue(q.add(key, packet(1), new PebbleFuture(), false));
+        q.poll();
+        assertTrue(q.add(key, packet(2), new PebbleFuture(), false));
+        assertNotNull(q.poll());
+    }
+
+    public void testCoalesceRejectsNewKeysWhenFull() throws Exception {
+        PebbleSendQueue q = new PebbleSendQueue(Pebble.QUEUE_COALESCE, 1);
+        assertTrue(q.add(Pebble.queueKey(1, 2, 3), packet(1), new PebbleFuture(), false));
+        assertFalse(q.add(Pebble.queueKey(1, 2, 4), packet(2), new PebbleFuture(), false));
+        assertTrue(q.add(Pebble.queueKey(1, 2, 3), packet(3), new PebbleFuture(), false));
+    }
+
+    public void testRemoveHandles() throws Exception {
+        PebbleSendQueue q = new PebbleSendQueue(Pebble.QUEUE_REJECT, 4);
+        PebbleDictionary window = packet(1);
+        window.addUint32(Pebble.KEY_WINDOW_ID, 3);
+        PebbleDictionary layer = packet(2);
+        layer.addUint32(Pebble.KEY_WINDOW_ID, Pebble.ROOT_WINDOW_HANDLE);
+        layer.addUint32(Pebble.KEY_TEXT_LAYER_ID, 4);
+        PebbleDictionary root = packet(3);
+        root.addUint32(Pebble.KEY_WINDOW_ID, Pebble.ROOT_WINDOW_HANDLE);
+        PebbleDictionary none = packet(4);
+        q.add(0, window, new PebbleFuture(), false);
+        q.add(0, layer, new PebbleFuture(), false);
+        q.add(0, root, new PebbleFuture(), false);
+        q.add(0, none, new PebbleFuture(), false);
+
+        List<PebbleSendQueue.Entry> removed = q.removeHandles();
+        assertEquals(2, removed.size());
+        assertSame(window, removed.get(0).data);
+        assertSame(layer, removed.get(1).data);
+        assertSame(root, q.poll().data);
+        assertSame(none, q.poll().data);
+        assertNull(q.poll());
+    }
+}
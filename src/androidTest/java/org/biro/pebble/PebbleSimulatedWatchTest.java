@@ -0,0 +1,146 @@
+package org.biro.pebble;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Runs text updates over PebbleSimulatedWatch, directly and through
+ * PebbleLoadTest.
+ */
+public class PebbleSimulatedWatchTest extends AndroidTestCase {
+    private PebbleTestHarness h;
+    private final List<String> applied = new ArrayList<>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        h = new PebbleTestHarness(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        h.quit();
+        super.tearDown();
+    }
+
+    private void listen() throws Exception {
+        h.run(new Runnable() {
+            @Override
+            public void run() {
+                h.watch.setApplyListener(new PebbleSimulatedWatch.ApplyListener() {
+                    @Override
+                    public void applied(int layer, String text) {
+                        synchronized (applied) {
+                            applied.add(text);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void show(final String text) throws Exception {
+        h.run(new Runnable() {
+            @Override
+            public void run() {
+                PebbleWindow pw = new PebbleWindow();
+                pw.setParent(h.pebble);
+                PebbleTextLayer tl = new PebbleTextLayer();
+                tl.setText(text);
+                pw.addLayer(tl);
+                pw.push(h.ctx);
+            }
+        });
+    }
+
+    public void testAppliesText() throws Exception {
+        listen();
+        show("hello");
+        assertTrue(h.settle());
+        synchronized (applied) {
+            assertTrue(applied.contains("hello"));
+        }
+    }
+
+    public void testNacksEverything() throws Exception {
+        listen();
+        h.run(new Runnable() {
+            @Override
+            public void run() {
+                h.watch.setNackRate(1);
+            }
+        });
+        show("hello");
+        assertTrue(h.await(new PebbleTestHarness.Condition() {
+            @Override
+            public boolean holds() {
+                return h.watch.getNacked() > 0;
+            }
+        }));
+        assertEquals(h.watch.getSent(), h.watch.getNacked());
+        synchronized (applied) {
+            assertTrue(applied.isEmpty());
+        }
+    }
+
+    private PebbleLoadTest.Report load(final int windows, final int layers) throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final PebbleLoadTest.Report[] report = new PebbleLoadTest.Report[1];
+        h.call(new Callable<Void>() {
+            @Override
+            public Void call() {
+                PebbleLoadTest t = new PebbleLoadTest(h.pebble, h.watch);
+                t.run(h.ctx, windows, layers, 20, 200, new PebbleLoadTest.Listener() {
+                    @Override
+                    public void finished(PebbleLoadTest.Report r) {
+                        report[0] = r;
+                        done.countDown();
+                    }
+                });
+                return null;
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        return report[0];
+    }
+
+    public void testLoadAppliesEveryUpdate() throws Exception {
+        PebbleLoadTest.Report r = load(2, 2);
+        assertTrue(r.updates > 0);
+        assertEquals(r.updates, r.applied);
+        assertTrue(r.p50 <= r.p90 && r.p90 <= r.p99 && r.p99 <= r.max);
+    }
+
+    public void testLoadWithoutLayers() throws Exception {
+        PebbleLoadTest.Report r = load(0, 0);
+        assertEquals(0, r.updates);
+        assertEquals(0, r.applied);
+    }
+}
@@ -0,0 +1,74 @@
+package org.biro.pebble;
+
+import junit.framework.TestCase;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Checks the phone's copy of the watch's string slots.
+ */
+public class PebbleStringCacheTest extends TestCase {
+
+    public void testStoresAndLooksUp() throws Exception {
+        PebbleStringCache c = new PebbleStringCache(2);
+        assertEquals(-1, c.lookup("a"));
+        int a = c.store("a");
+        int b = c.store("b");
+        assertTrue(a != b);
+        assertEquals(a, c.lookup("a"));
+        assertEquals(b, c.lookup("b"));
+    }
+
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        PebbleStringCache c = new PebbleStringCache(2);
+        int a = c.store("a");
+        int b = c.store("b");
+        // Using a makes b the oldest.
+        c.lookup("a");
+        assertEquals(b, c.store("c"));
+        assertEquals(-1, c.lookup("b"));
+        assertEquals(a, c.lookup("a"));
+        assertEquals(b, c.lookup("c"));
+    }
+
+    public void testInvalidateFreesSlot() throws Exception {
+        PebbleStringCache c = new PebbleStringCache(2);
+        int a = c.store("a");
+        c.store("b");
+        c.invalidate(a);
+        assertEquals(-1, c.lookup("a"));
+        // The freed slot is used before anything is evicted.
+        assertEquals(a, c.store("c"));
+        assertTrue(c.lookup("b") >= 0);
+    }
+
+    public void testClear() throws Exception {
+        PebbleStringCache c = new PebbleStringCache(2);
+        c.store("a");
+        c.store("b");
+        c.clear();
+        assertEquals(-1, c.lookup("a"));
+        assertEquals(-1, c.lookup("b"));
+        assertEquals(0, c.store("c"));
+    }
+}
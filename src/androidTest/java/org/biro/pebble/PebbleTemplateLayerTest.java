@@ -0,0 +1,159 @@
+package org.biro.pebble;
+
+import android.test.AndroidTestCase;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Checks how template layers encode their fields, and that the watch
+ * renders what they send.
+ */
+public class PebbleTemplateLayerTest extends AndroidTestCase {
+
+    private static byte[] fields(PebbleTemplateLayer t) {
+        PebbleDictionary pd = new PebbleDictionary();
+        t.addAttributes(pd);
+        t.attributesApplied(pd);
+        return pd.getBytes(Pebble.KEY_ATTRIBUTE_FIELDS);
+    }
+
+    private static byte[] bytes(int... b) {
+        byte[] r = new byte[b.length];
+        for (int i = 0; i < b.length; ++i) {
+            r[i] = (byte) b[i];
+        }
+        return r;
+    }
+
+    public void testZigzagEncodesInts() throws Exception {
+        PebbleTemplateLayer t = new PebbleTemplateLayer();
+        t.setField(0, 0);
+        t.setField(1, -1);
+        t.setField(2, 64);
+        t.setField(3, Integer.MIN_VALUE);
+        byte[] expected = bytes(
+                0, Pebble.FIELD_INT, 0x00,
+                1, Pebble.FIELD_INT, 0x01,
+                2, Pebble.FIELD_INT, 0x80, 0x01,
+                3, Pebble.FIELD_INT, 0xff, 0xff, 0xff, 0xff, 0x0f);
+        assertTrue(Arrays.equals(expected, fields(t)));
+    }
+
+    public void testSendsOnlyChangedFields() throws Exception {
+        PebbleTemplateLayer t = new PebbleTemplateLayer();
+        t.setTemplate("{0} {1}");
+        t.setField(0, 1);
+        t.setField(1, "a");
+        fields(t);
+
+        t.setField(0, 1);
+        t.setField(1, "b");
+        assertTrue(Arrays.equals(bytes(1, Pebble.FIELD_STRING, 1, 'b'), fields(t)));
+        assertFalse(t.changed());
+    }
+
+    public void testFailedFieldsGoAgain() throws Exception {
+        PebbleTemplateLayer t = new PebbleTemplateLayer();
+        t.setField(0, 5);
+        PebbleDictionary pd = new PebbleDictionary();
+        t.addAttributes(pd);
+        t.attributesFailed();
+        assertTrue(t.attributesChanged());
+        assertTrue(Arrays.equals(bytes(0, Pebble.FIELD_INT, 10), fields(t)));
+    }
+
+    public void testIgnoresBadFields() throws Exception {
+        PebbleTemplateLayer t = new PebbleTemplateLayer();
+        t.setField(-1, 1);
+        t.setField(PebbleTemplateLayer.MAX_FIELDS, 1);
+        t.setField(32, "x");
+        assertFalse(t.attributesChanged());
+
+        t.setField(0, (String) null);
+        assertTrue(Arrays.equals(bytes(0, Pebble.FIELD_STRING, 0), fields(t)));
+    }
+
+    public void testCutsLongStringsBetweenCharacters() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 200) {
+            sb.append('é'); // two bytes in UTF-8
+        }
+        PebbleTemplateLayer t = new PebbleTemplateLayer();
+        t.setField(0, sb.toString());
+        byte[] b = fields(t);
+        int len = b[2] & 0xff;
+        assertEquals(b.length - 3, len);
+        assertEquals(254, len);
+        String sent = new String(b, 3, len, "UTF-8");
+        assertTrue(sb.toString().startsWith(sent));
+    }
+
+    public void testWatchRendersTemplate() throws Exception {
+        final PebbleTestHarness h = new PebbleTestHarness(getContext());
+        final List<String> applied = new ArrayList<>();
+        try {
+            final PebbleTemplateLayer t = new PebbleTemplateLayer();
+            final PebbleWindow pw = new PebbleWindow();
+            h.run(new Runnable() {
+                @Override
+                public void run() {
+                    h.watch.setApplyListener(new PebbleSimulatedWatch.ApplyListener() {
+                        @Override
+                        public void applied(int layer, String text) {
+                            synchronized (applied) {
+                                applied.add(text);
+                            }
+                        }
+                    });
+                    pw.setParent(h.pebble);
+                    t.setTemplate("HR {0} bpm  Pace {1}");
+                    t.setField(0, -12);
+                    t.setField(1, "5:30");
+                    pw.addLayer(t);
+                    pw.push(h.ctx);
+                }
+            });
+            assertTrue(h.settle());
+            h.run(new Runnable() {
+                @Override
+                public void run() {
+                    t.setField(0, 140);
+                    pw.update(h.ctx);
+                }
+            });
+            assertTrue(h.settle());
+            synchronized (applied) {
+                assertEquals("HR -12 bpm  Pace 5:30", applied.get(applied.size() - 2));
+                assertEquals("HR 140 bpm  Pace 5:30", applied.get(applied.size() - 1));
+            }
+        } finally {
+            h.quit();
+        }
+    }
+}
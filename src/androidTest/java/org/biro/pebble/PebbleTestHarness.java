@@ -0,0 +1,183 @@
+package org.biro.pebble;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Runs a Pebble against a PebbleSimulatedWatch on a thread of its own, the
+ * way an app runs it on its main thread.  Tests hand it work with run()
+ * and call(), and wait for the link to settle with await().  Every packet
+ * sent is kept in sent, and the next few can be nacked with nack().
+ */
+class PebbleTestHarness {
+    static final String UUID_STRING = "12345678-1234-1234-1234-123456789012";
+    private static final long TIMEOUT_MS = 5000;
+
+    interface Condition {
+        boolean holds() throws Exception;
+    }
+
+    final Context ctx;
+    final List<PebbleDictionary> sent = new ArrayList<>();
+    Pebble pebble;
+    PebbleSimulatedWatch watch;
+
+    private final HandlerThread thread;
+    private final Handler handler;
+    private int nacks = 0;
+
+    PebbleTestHarness(Context ctx) throws Exception {
+        this.ctx = ctx;
+        thread = new HandlerThread("PebbleTestHarness");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        call(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                pebble = new Pebble();
+                pebble.setPebbleAppUUID(UUID_STRING);
+                watch = new PebbleSimulatedWatch(pebble, 1);
+                watch.setLatency(PebbleSimulatedWatch.LATENCY_CONSTANT, 2, 0);
+                pebble.setTransport(transport);
+                return null;
+            }
+        });
+    }
+
+    private final Pebble.PebbleTransport transport = new Pebble.PebbleTransport() {
+        @Override
+        public void sendData(final Context ctx, UUID uuid, PebbleDictionary data, final int tid) {
+            synchronized (sent) {
+                sent.add(data);
+            }
+            if (nacks > 0) {
+                nacks--;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        pebble.receiveNack(ctx, tid);
+                    }
+                });
+                return;
+            }
+            watch.sendData(ctx, uuid, data, tid);
+        }
+
+        @Override
+        public void sendAck(Context ctx, int tid) {
+            watch.sendAck(ctx, tid);
+        }
+
+        @Override
+        public void sendNack(Context ctx, int tid) {
+            watch.sendNack(ctx, tid);
+        }
+    };
+
+    // Nacks the next count packets instead of delivering them.
+    void nack(final int count) throws Exception {
+        run(new Runnable() {
+            @Override
+            public void run() {
+                nacks = count;
+            }
+        });
+    }
+
+    // What the dispatcher does on ACTION_RETRY.
+    void retry() throws Exception {
+        run(new Runnable() {
+            @Override
+            public void run() {
+                pebble.idle(ctx);
+            }
+        });
+    }
+
+    <T> T call(Callable<T> c) throws Exception {
+        FutureTask<T> f = new FutureTask<>(c);
+        handler.post(f);
+        return f.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    void run(Runnable r) throws Exception {
+        call(Executors.callable(r));
+    }
+
+    // Waits, checking on the Pebble's thread, until c holds.
+    boolean await(final Condition c) throws Exception {
+        long end = System.currentTimeMillis() + TIMEOUT_MS;
+        Callable<Boolean> check = new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return c.holds();
+            }
+        };
+        while (System.currentTimeMillis() < end) {
+            if (call(check)) {
+                return true;
+            }
+            Thread.sleep(10);
+        }
+        return false;
+    }
+
+    // Waits until nothing is in flight.
+    boolean settle() throws Exception {
+        return await(new Condition() {
+            @Override
+            public boolean holds() {
+                return !pebble.isBusy();
+            }
+        });
+    }
+
+    List<PebbleDictionary> sent() {
+        synchronized (sent) {
+            return new ArrayList<>(sent);
+        }
+    }
+
+    void clearSent() {
+        synchronized (sent) {
+            sent.clear();
+        }
+    }
+
+    void quit() {
+        thread.quit();
+    }
+}
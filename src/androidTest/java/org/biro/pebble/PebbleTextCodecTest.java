@@ -0,0 +1,77 @@
+package org.biro.pebble;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Checks that packed text comes back the same from the watch's decoder.
+ */
+public class PebbleTextCodecTest extends TestCase {
+
+    private static void assertRoundTrip(String s) throws Exception {
+        assertEquals(s, PebbleSimulatedWatch.unpackText(PebbleTextCodec.encode(s)));
+    }
+
+    public void testRoundTrip() throws Exception {
+        assertRoundTrip("");
+        assertRoundTrip("Distance 5.23 km");
+        assertRoundTrip("Pace 5:32/km  Lap 3 split 4:55");
+        assertRoundTrip("Caf\u00e9 5\u20ac stra\u00dfe");
+        assertRoundTrip("smile \ud83d\ude00");
+        assertRoundTrip("nul \u0000 inside");
+        assertRoundTrip("  / - % : , ");
+    }
+
+    public void testSamples() throws Exception {
+        PebbleTextBenchmark.Report r = PebbleTextBenchmark.run(0);
+        assertEquals(PebbleTextBenchmark.SAMPLES.length, r.strings);
+        assertEquals(0, r.mismatches);
+        assertEquals(315, r.rawBytes);
+        assertEquals(166, r.sentBytes);
+    }
+
+    // Strings the dictionary wasn't tuned on save much less.
+    public void testHeldOut() throws Exception {
+        PebbleTextBenchmark.Report r = PebbleTextBenchmark.runHeldOut(0);
+        assertEquals(PebbleTextBenchmark.HELD_OUT.length, r.strings);
+        assertEquals(0, r.mismatches);
+        assertEquals(306, r.rawBytes);
+        assertEquals(224, r.sentBytes);
+    }
+
+    public void testDictionaryEntryIsOneByte() throws Exception {
+        assertEquals(1, PebbleTextCodec.encode("Distance").length);
+    }
+
+    public void testLiteralAscii() throws Exception {
+        assertTrue(Arrays.equals(new byte[]{'x', 'q', 'z'}, PebbleTextCodec.encode("xqz")));
+    }
+
+    public void testEscapesUtf8() throws Exception {
+        assertTrue(Arrays.equals(new byte[]{0, (byte) 0xc3, 0, (byte) 0xa9},
+                PebbleTextCodec.encode("\u00e9")));
+    }
+}
@@ -0,0 +1,217 @@
+package org.biro.pebble;
+
+import android.test.AndroidTestCase;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Drives text layers against the simulated watch and checks what they
+ * send and what the watch ends up showing.
+ */
+public class PebbleTextLayerTest extends AndroidTestCase {
+    private PebbleTestHarness h;
+    private PebbleWindow pw;
+    private PebbleTextLayer tl;
+    private final List<String> applied = new ArrayList<>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        h = new PebbleTestHarness(getContext());
+        h.run(new Runnable() {
+            @Override
+            public void run() {
+                h.watch.setApplyListener(new PebbleSimulatedWatch.ApplyListener() {
+                    @Override
+                    public void applied(int layer, String text) {
+                        synchronized (applied) {
+                            applied.add(text);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        h.quit();
+        super.tearDown();
+    }
+
+    private String shown() {
+        synchronized (applied) {
+            return applied.isEmpty() ? null : applied.get(applied.size() - 1);
+        }
+    }
+
+    private void show(final String text) throws Exception {
+        h.run(new Runnable() {
+            @Override
+            public void run() {
+                pw = new PebbleWindow();
+                pw.setParent(h.pebble);
+                tl = new PebbleTextLayer();
+                tl.setText(text);
+                pw.addLayer(tl);
+                pw.push(h.ctx);
+            }
+        });
+        assertTrue(h.settle());
+    }
+
+    private void setText(final String text) throws Exception {
+        h.run(new Runnable() {
+            @Override
+            public void run() {
+                tl.setText(text);
+                pw.update(h.ctx);
+            }
+        });
+        assertTrue(h.settle());
+    }
+
+    private int sent(int method) {
+        int n = 0;
+        for (PebbleDictionary pd : h.sent()) {
+            Long m = pd.getUnsignedIntegerAsLong(Pebble.KEY_METHOD_ID);
+            if (m != null && m == method) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    public void testNackedApplyGoesAgain() throws Exception {
+        show("before");
+        assertEquals("before", shown());
+        final int handle = tl.getHandle();
+
+        h.clearSent();
+        h.nack(1);
+        setText("after");
+        assertEquals("before", shown());
+        h.retry();
+        assertTrue(h.settle());
+
+        assertEquals("after", shown());
+        // The window was left alone, only the apply went again.
+        assertEquals(0, sent(Pebble.FUNC_CLEAR_WINDOW));
+        assertEquals(2, sent(Pebble.FUNC_APPLY_ATTRIBUTES));
+        assertEquals(handle, tl.getHandle());
+    }
+
+    private int sentWith(int key) {
+        int n = 0;
+        for (PebbleDictionary pd : h.sent()) {
+            if (pd.contains(key)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    public void testRepeatedTextUsesSlot() throws Exception {
+        show("a text long enough to keep");
+        setText("something else");
+        h.clearSent();
+        setText("a text long enough to keep");
+        assertEquals("a text long enough to keep", shown());
+        assertEquals(1, sentWith(Pebble.KEY_ATTRIBUTE_TEXT_SLOT));
+        assertEquals(0, sentWith(Pebble.KEY_ATTRIBUTE_TEXT));
+    }
+
+    public void testFailedSlotReferenceSendsText() throws Exception {
+        show("before");
+        // We think the watch has it, but it doesn't.
+        h.pebble.getStringCache().store("a text the watch never got");
+        h.clearSent();
+        setText("a text the watch never got");
+        assertEquals("a text the watch never got", shown());
+        assertEquals(1, sentWith(Pebble.KEY_ATTRIBUTE_TEXT_SLOT));
+        assertEquals(1, sentWith(Pebble.KEY_ATTRIBUTE_TEXT_STORE));
+    }
+
+    // A new frame while the text is in flight means the text sent was
+    // cut for the wrong size, so it goes again.
+    public void testResizeDuringSendRefitsText() throws Exception {
+        final String text = "a long line of text that will not fit in a small frame";
+        show("before");
+        h.run(new Runnable() {
+            @Override
+            public void run() {
+                tl.setText(text);
+                pw.update(h.ctx);
+                tl.setRect(0, 0, 40, 20);
+            }
+        });
+        assertTrue(h.settle());
+
+        assertEquals(PebbleTextLayout.fit("Raster Gothic 14-point Boldface", 40, 20, true, text),
+                shown());
+        assertFalse(tl.changed());
+    }
+
+    private int sentTimerSeconds() {
+        int seconds = -1;
+        for (PebbleDictionary pd : h.sent()) {
+            byte[] a = pd.getBytes(Pebble.KEY_ATTRIBUTE_ANIMATION);
+            if (a != null && a[0] == Pebble.ANIMATION_TIMER) {
+                seconds = 0;
+                for (int i = 0; i < 4; ++i) {
+                    seconds |= (a[3 + i] & 0xff) << (i * 8);
+                }
+            }
+        }
+        return seconds;
+    }
+
+    // A timer that goes again after a failure starts the watch from
+    // where it is now, not from where it was first set.
+    public void testResentTimerStartsFromNow() throws Exception {
+        show("before");
+        h.clearSent();
+        h.nack(1);
+        h.run(new Runnable() {
+            @Override
+            public void run() {
+                tl.setTimer(100, -1, Pebble.TIMER_FORMAT_SECONDS);
+                pw.update(h.ctx);
+            }
+        });
+        assertTrue(h.settle());
+        assertEquals(100, sentTimerSeconds());
+
+        Thread.sleep(1500);
+        h.retry();
+        assertTrue(h.settle());
+        int seconds = sentTimerSeconds();
+        assertTrue("sent " + seconds, seconds <= 99 && seconds >= 97);
+        assertFalse(tl.changed());
+    }
+}
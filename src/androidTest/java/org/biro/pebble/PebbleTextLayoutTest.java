@@ -0,0 +1,86 @@
+package org.biro.pebble;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Checks wrapping and truncation, with a font where every character is
+ * 10 pixels wide and lines are 10 pixels tall.
+ */
+public class PebbleTextLayoutTest extends TestCase {
+
+    private static final String FONT = "PebbleTextLayoutTest";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        int[] widths = new int[0x7f - 0x20];
+        Arrays.fill(widths, 10);
+        PebbleFontMetrics.register(FONT, new PebbleFontMetrics(10, widths, 10));
+    }
+
+    private static String fit(int w, int h, boolean ellipsis, String text) {
+        return PebbleTextLayout.fit(FONT, w, h, ellipsis, text);
+    }
+
+    public void testFitsWhole() {
+        assertEquals("abc", fit(100, 10, true, "abc"));
+        assertEquals("aaa bbb", fit(70, 10, true, "aaa bbb"));
+    }
+
+    public void testCutsAtWord() {
+        assertEquals("aaa", fit(50, 10, false, "aaa bbb ccc"));
+        assertEquals("aaa" + PebbleTextLayout.ELLIPSIS, fit(50, 10, true, "aaa bbb ccc"));
+    }
+
+    public void testWraps() {
+        assertEquals("aaa bbb", fit(50, 20, false, "aaa bbb ccc"));
+        assertEquals("aaa bbb ccc", fit(50, 30, false, "aaa bbb ccc"));
+    }
+
+    public void testBreaksLongWord() {
+        assertEquals("abc", fit(30, 10, false, "abcdefgh"));
+        assertEquals("abcdef", fit(30, 20, false, "abcdefgh"));
+    }
+
+    // The ellipsis takes the place of whatever it doesn't fit beside.
+    public void testMakesRoomForEllipsis() {
+        assertEquals("ab" + PebbleTextLayout.ELLIPSIS, fit(30, 10, true, "abcdefgh"));
+    }
+
+    public void testNewline() {
+        assertEquals("ab", fit(100, 10, false, "ab\ncd"));
+        assertEquals("ab\ncd", fit(100, 20, false, "ab\ncd"));
+    }
+
+    public void testNoRoom() {
+        assertEquals("", fit(100, 5, true, "abc"));
+    }
+
+    public void testUnknownFont() {
+        assertEquals("abc", PebbleTextLayout.fit("No such font", 1, 1, true, "abc"));
+    }
+}
@@ -0,0 +1,143 @@
+package org.biro.pebble;
+
+import android.test.AndroidTestCase;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Records a session with PebbleTrace and replays it through a fresh Pebble
+ * with PebbleTraceReplayer.
+ */
+public class PebbleTraceTest extends AndroidTestCase {
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = new File(getContext().getFilesDir(), "PebbleTraceTest.trace");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+        super.tearDown();
+    }
+
+    public void testDictionaryRoundTrip() throws Exception {
+        PebbleDictionary pd = new PebbleDictionary();
+        pd.addUint8(1, (byte) 200);
+        pd.addUint16(2, (short) 60000);
+        pd.addUint32(3, 0xfffffff0);
+        pd.addInt8(4, (byte) -3);
+        pd.addString(5, "héllo");
+        pd.addBytes(6, new byte[]{1, 2, 3});
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PebbleTrace.writeDictionary(new DataOutputStream(bytes), pd);
+        PebbleDictionary back = PebbleTrace.readDictionary(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(200L, (long) back.getUnsignedIntegerAsLong(1));
+        assertEquals(60000L, (long) back.getUnsignedIntegerAsLong(2));
+        assertEquals(0xfffffff0L, (long) back.getUnsignedIntegerAsLong(3));
+        assertEquals(-3L, (long) back.getInteger(4));
+        assertEquals("héllo", back.getString(5));
+        assertTrue(Arrays.equals(new byte[]{1, 2, 3}, back.getBytes(6)));
+    }
+
+    private static PebbleWindow window(Pebble pebble, PebbleTextLayer... layers) {
+        PebbleWindow pw = new PebbleWindow();
+        pw.setParent(pebble);
+        for (PebbleTextLayer l : layers) {
+            pw.addLayer(l);
+        }
+        return pw;
+    }
+
+    public void testReplayMatchesRecordedSession() throws Exception {
+        final PebbleTestHarness live = new PebbleTestHarness(getContext());
+        try {
+            live.pebble.startTrace(file);
+            live.run(new Runnable() {
+                @Override
+                public void run() {
+                    PebbleTextLayer a = new PebbleTextLayer();
+                    a.setText("one");
+                    PebbleTextLayer b = new PebbleTextLayer();
+                    b.setText("two");
+                    window(live.pebble, a, b).push(live.ctx);
+                }
+            });
+            assertTrue(live.settle());
+            live.pebble.stopTrace();
+        } finally {
+            live.quit();
+        }
+        final int recorded = live.sent().size();
+
+        final PebbleTestHarness h = new PebbleTestHarness(getContext());
+        try {
+            final PebbleTraceReplayer replayer = new PebbleTraceReplayer(h.pebble, file);
+            final CountDownLatch done = new CountDownLatch(1);
+            final PebbleTextLayer a = new PebbleTextLayer();
+            final PebbleTextLayer b = new PebbleTextLayer();
+            h.call(new java.util.concurrent.Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    replayer.replay(h.ctx, false, new PebbleTraceReplayer.Listener() {
+                        @Override
+                        public void finished(PebbleTraceReplayer r) {
+                            done.countDown();
+                        }
+                    });
+                    a.setText("one");
+                    b.setText("two");
+                    window(h.pebble, a, b).push(h.ctx);
+                    return null;
+                }
+            });
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals(0, replayer.getDivergences());
+            // Every packet, its ack and its response.
+            assertEquals(3 * recorded, replayer.getEvents());
+            // The replayed responses carried the live ids, so the layers
+            // got their handles.
+            assertTrue(a.getHandle() >= 0);
+            assertTrue(b.getHandle() >= 0);
+            assertFalse(h.pebble.isBusy());
+        } finally {
+            h.quit();
+        }
+    }
+}
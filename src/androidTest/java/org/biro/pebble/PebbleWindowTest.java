@@ -0,0 +1,268 @@
+package org.biro.pebble;
+
+import android.test.AndroidTestCase;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Checks the order restack() moves layers in, how windows share the
+ * link with the simulated watch, and which of them come back after the
+ * watch app restarts or runs out of memory.
+ */
+public class PebbleWindowTest extends AndroidTestCase {
+    private PebbleTestHarness h;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (h != null) {
+            h.quit();
+        }
+        super.tearDown();
+    }
+
+    // Makes the moves restack() would until the layers are in order,
+    // and returns how many it took.
+    private static int restack(int... order) {
+        List<Integer> onWatch = new ArrayList<>();
+        for (int t : order) {
+            onWatch.add(t);
+        }
+        int moves = 0;
+        while (true) {
+            int[] target = new int[onWatch.size()];
+            for (int i = 0; i < target.length; ++i) {
+                target[i] = onWatch.get(i);
+            }
+            int t = PebbleWindow.nextMove(target);
+            if (t < 0) {
+                break;
+            }
+            onWatch.remove(Integer.valueOf(t));
+            onWatch.add(t == 0 ? 0 : onWatch.indexOf(t - 1) + 1, t);
+            moves++;
+            assertTrue("too many moves", moves <= order.length);
+        }
+        for (int i = 0; i < order.length; ++i) {
+            assertEquals(i, (int) onWatch.get(i));
+        }
+        return moves;
+    }
+
+    public void testInOrder() {
+        assertEquals(-1, PebbleWindow.nextMove(new int[0]));
+        assertEquals(-1, PebbleWindow.nextMove(new int[]{0}));
+        assertEquals(-1, PebbleWindow.nextMove(new int[]{0, 1, 2, 3}));
+    }
+
+    public void testOneOutOfPlace() {
+        assertEquals(0, PebbleWindow.nextMove(new int[]{1, 2, 3, 0}));
+        assertEquals(1, restack(1, 2, 3, 0));
+        assertEquals(1, restack(3, 0, 1, 2));
+        assertEquals(1, restack(0, 2, 1, 3));
+    }
+
+    public void testReversed() {
+        assertEquals(3, restack(3, 2, 1, 0));
+    }
+
+    // Only the layers outside the longest run in order move.
+    public void testKeepsLongestRun() {
+        assertEquals(2, restack(2, 0, 3, 1, 4));
+        assertEquals(2, restack(5, 0, 4, 1, 2, 3));
+        assertEquals(3, restack(3, 5, 4, 0, 1, 2));
+    }
+
+    private static PebbleWindow window(Pebble pebble, int layers) {
+        PebbleWindow pw = new PebbleWindow();
+        pw.setParent(pebble);
+        for (int i = 0; i < layers; ++i) {
+            PebbleTextLayer tl = new PebbleTextLayer();
+            tl.setText("layer " + i);
+            pw.addLayer(tl);
+        }
+        return pw;
+    }
+
+    private static int method(PebbleDictionary pd) {
+        Long m = pd.getUnsignedIntegerAsLong(Pebble.KEY_METHOD_ID);
+        return m == null ? -1 : m.intValue();
+    }
+
+    // A prebuild gives way to a window on screen after every packet.
+    public void testPrebuildYieldsToVisibleWindow() throws Exception {
+        h = new PebbleTestHarness(getContext());
+        final PebbleWindow shown = window(h.pebble, 0);
+        final PebbleTextLayer tl = new PebbleTextLayer();
+        tl.setText("shown");
+        shown.addLayer(tl);
+        final PebbleWindow next = window(h.pebble, 3);
+        h.run(new Runnable() {
+            @Override
+            public void run() {
+                shown.push(h.ctx);
+            }
+        });
+        assertTrue(h.settle());
+
+        h.clearSent();
+        h.run(new Runnable() {
+            @Override
+            public void run() {
+                next.prebuild(h.ctx);
+                tl.setText("changed");
+                shown.update(h.ctx);
+            }
+        });
+        assertTrue(h.settle());
+
+        List<PebbleDictionary> sent = h.sent();
+        assertEquals(Pebble.FUNC_NEW_WINDOW, method(sent.get(0)));
+        // The update went out as soon as the link was free.
+        assertEquals(Pebble.FUNC_APPLY_ATTRIBUTES, method(sent.get(1)));
+        assertEquals(tl.getHandle(), (long) sent.get(1).getUnsignedIntegerAsLong(Pebble.KEY_TEXT_LAYER_ID));
+        assertFalse(next.needsBuild());
+    }
+
+    private int sent(int method) {
+        int n = 0;
+        for (PebbleDictionary pd : h.sent()) {
+            if (method(pd) == method) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    // Brings pw up with a layer and clicks, restarts the watch app and
+    // checks that the window came back without being pushed again.
+    private void checkRebuiltAfterRestart(final PebbleWindow pw) throws Exception {
+        final PebbleTextLayer tl = new PebbleTextLayer();
+        tl.setText("kept");
+        h.run(new Runnable() {
+            @Override
+            public void run() {
+                pw.addLayer(tl);
+                pw.setClickRequests(Pebble.BUTTON_NUM_BUTTONS - 1);
+                pw.requestClicks(h.ctx);
+                pw.update(h.ctx);
+            }
+        });
+        assertTrue(h.settle());
+        assertTrue(tl.getHandle() >= 0);
+
+        h.clearSent();
+        h.run(new Runnable() {
+            @Override
+            public void run() {
+                h.watch.restart(h.ctx);
+            }
+        });
+        assertTrue(h.await(new PebbleTestHarness.Condition() {
+            @Override
+            public boolean holds() {
+                return sent(Pebble.FUNC_RESET_WINDOWS) > 0;
+            }
+        }));
+        assertTrue(h.settle());
+
+        assertEquals(1, sent(Pebble.FUNC_GET_DICTIONARY_BY_ID));
+        assertEquals(1, sent(Pebble.FUNC_REQUEST_CLICKS));
+        assertEquals(1, sent(Pebble.FUNC_NEW_TEXT_LAYER));
+        assertTrue(tl.getHandle() >= 0);
+        assertFalse(pw.needsBuild());
+    }
+
+    public void testRootWindowRebuiltAfterRestart() throws Exception {
+        h = new PebbleTestHarness(getContext());
+        PebbleWindow root = PebbleWindow.getRootWindow();
+        root.setParent(h.pebble);
+        try {
+            checkRebuiltAfterRestart(root);
+        } finally {
+            h.pebble.removeChild(root);
+        }
+    }
+
+    public void testIdWindowRebuiltAfterRestart() throws Exception {
+        h = new PebbleTestHarness(getContext());
+        PebbleWindow pw = window(h.pebble, 0);
+        pw.setId(7);
+        checkRebuiltAfterRestart(pw);
+    }
+
+    // The least recently shown window goes, unless the watch app owns it.
+    public void testEvictionSkipsBoundWindows() throws Exception {
+        h = new PebbleTestHarness(getContext());
+        final PebbleWindow bound = window(h.pebble, 1);
+        bound.setId(7);
+        final PebbleWindow older = window(h.pebble, 1);
+        final PebbleWindow newer = window(h.pebble, 1);
+        h.run(new Runnable() {
+            @Override
+            public void run() {
+                bound.update(h.ctx);
+            }
+        });
+        assertTrue(h.settle());
+        h.run(new Runnable() {
+            @Override
+            public void run() {
+                older.push(h.ctx);
+            }
+        });
+        assertTrue(h.settle());
+        Thread.sleep(5);
+        h.run(new Runnable() {
+            @Override
+            public void run() {
+                newer.push(h.ctx);
+            }
+        });
+        assertTrue(h.settle());
+
+        assertTrue(h.call(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return h.pebble.evict(h.ctx, newer);
+            }
+        }));
+        assertTrue(h.settle());
+        assertTrue(older.needsBuild());
+        assertFalse(bound.needsBuild());
+        assertFalse(newer.needsBuild());
+
+        // Nothing else may go.
+        assertFalse(h.call(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return h.pebble.evict(h.ctx, newer);
+            }
+        }));
+    }
+}
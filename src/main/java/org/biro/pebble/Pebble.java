@@ -2,15 +2,19 @@ package org.biro.pebble;
 
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.util.SparseArray;
 
 import com.getpebble.android.kit.PebbleKit;
 import com.getpebble.android.kit.util.PebbleDictionary;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
@@ -52,6 +56,13 @@ public class Pebble {
     public static final int FUNC_GET_TEXT_LAYER_BY_ID = 7;
     public static final int FUNC_CLEAR_WINDOW = 8;
     public static final int FUNC_RESET_WINDOWS = 9;
+    public static final int FUNC_NEW_CANVAS_LAYER = 10;
+    public static final int FUNC_GET_CANVAS_LAYER_BY_ID = 11;
+    public static final int FUNC_NEW_LIST_LAYER = 12;
+    public static final int FUNC_GET_LIST_LAYER_BY_ID = 13;
+    public static final int FUNC_DESTROY_LAYER = 14;
+    public static final int FUNC_MOVE_LAYER = 15;
+    public static final int FUNC_DESTROY_WINDOW = 16;
 
     public static final int KEY_STATUS = 0;
     public static final int KEY_API_VERSION = 1;
@@ -77,6 +88,25 @@ public class Pebble {
     public static final int KEY_BUTTON_6 = 21;
     public static final int KEY_BUTTON_7 = 22; // reserve space for 8 buttons, although there are only 4 right now.
     public static final int KEY_ID = 23;
+    public static final int KEY_CANVAS_LAYER_ID = 24;
+    public static final int KEY_ATTRIBUTE_CANVAS_OPS = 25;
+    public static final int KEY_ATTRIBUTE_CANVAS_COUNT = 26;
+    public static final int KEY_ATTRIBUTE_TEMPLATE = 27;
+    public static final int KEY_ATTRIBUTE_FIELDS = 28;
+    public static final int KEY_LIST_LAYER_ID = 29;
+    public static final int KEY_LIST_SLOTS = 30;
+    public static final int KEY_ATTRIBUTE_LIST_TOP = 31;
+    public static final int KEY_ATTRIBUTE_LIST_COUNT = 32;
+    public static final int KEY_ATTRIBUTE_LIST_ROWS = 33; // [slot u8][position u16][len u8][utf-8]...
+    public static final int KEY_ATTRIBUTE_TEXT_SLOT = 34; // use the text in this string slot.
+    public static final int KEY_ATTRIBUTE_TEXT_STORE = 35; // also keep KEY_ATTRIBUTE_TEXT in this slot.
+    public static final int KEY_ATTRIBUTE_ANIMATION = 36; // [type u8][args], see ANIMATION_*
+    public static final int KEY_LAYER_ABOVE = 37; // FUNC_MOVE_LAYER: handle to go just above, -1 for the bottom.
+    public static final int KEY_ATTRIBUTE_TEXT_PACKED = 38; // KEY_ATTRIBUTE_TEXT packed by PebbleTextCodec.
+
+    // What the watch app can do, from KEY_API_VERSION in STATUS_STARTED.
+    public static final int API_VERSION_BASE = 1;
+    public static final int API_VERSION_PACKED_TEXT = 2;
 
     public static final int STATUS_OK = 0;
     public static final int STATUS_ERR = 1;
@@ -92,6 +122,14 @@ public class Pebble {
     public static final int EINVALID_OP = 4;
     public static final int EINVALID_TRANSACTION = 5;
     public static final int ENACK_RECEIVED = -1; // never sent.  Synthetic error.
+    public static final int EQUEUE_FULL = -2; // never sent.  Synthetic error.
+    public static final int ETIMEDOUT = -3; // never sent.  Synthetic error.
+
+    // What sendAsync() does when the outbound queue is full.
+    public static final int QUEUE_BLOCK = 0;
+    public static final int QUEUE_REJECT = 1;
+    public static final int QUEUE_COALESCE = 2; // replace queued packets with the same key, else reject.
+    private static final int QUEUE_SIZE = 32;
 
     public static final int COLOR_BLACK = 0;
     public static final int COLOR_WHITE = 1;
@@ -101,6 +139,34 @@ public class Pebble {
     public static final int TEXT_ALIGNMENT_CENTER = 1;
     public static final int TEXT_ALIGNMENT_RIGHT = 2;
 
+    // Template field encodings in KEY_ATTRIBUTE_FIELDS:
+    // [index u8][type u8][value].
+    public static final int FIELD_INT = 0; // zigzag varint
+    public static final int FIELD_STRING = 1; // len u8, utf-8 bytes
+
+    // Animations the watch runs by itself, in KEY_ATTRIBUTE_ANIMATION.
+    // Multi byte args are little endian.
+    public static final int ANIMATION_NONE = 0;
+    public static final int ANIMATION_TIMER = 1; // [format u8][step s8, seconds per second][seconds s32]
+    public static final int ANIMATION_SCROLL = 2; // [pixels per second u8], scrolls the text
+    public static final int ANIMATION_BLINK = 3; // [on ms u16][off ms u16], blinks the text
+
+    public static final int TIMER_FORMAT_SECONDS = 0; // 754
+    public static final int TIMER_FORMAT_MMSS = 1; // 12:34
+    public static final int TIMER_FORMAT_HMMSS = 2; // 1:02:34
+
+    // Canvas display list opcodes.  Coordinates are little endian int16.
+    public static final int CANVAS_OP_NOP = 0;
+    public static final int CANVAS_OP_STROKE_COLOR = 1; // color
+    public static final int CANVAS_OP_FILL_COLOR = 2; // color
+    public static final int CANVAS_OP_LINE = 3; // x0, y0, x1, y1
+    public static final int CANVAS_OP_RECT = 4; // x, y, w, h
+    public static final int CANVAS_OP_FILL_RECT = 5; // x, y, w, h
+    public static final int CANVAS_OP_CIRCLE = 6; // x, y, r
+    public static final int CANVAS_OP_FILL_CIRCLE = 7; // x, y, r
+    public static final int CANVAS_OP_PATH = 8; // closed, n, n * (x, y)
+    public static final int CANVAS_OP_TEXT = 9; // x, y, len, utf-8 bytes
+
     public static final String ACTION_BUTTON_PRESS = "org.biro.pebble.Pebble.BUTTON_PRESS";
     public static final int BUTTON_BACK = 0;
     public static final int BUTTON_UP = 1;
@@ -118,6 +184,9 @@ public class Pebble {
     public static final String ACTION_RETRY = "org.biro.pebble.Pebble.ACTION_RETRY";
 
     private static final int RETRY_DELAY = 2000; // retry every 2 seconds
+    private static final int PACKET_TIMEOUT = 10000;
+    private static final int STRING_SLOTS = 16;
+    private static final int RECENT_PACKETS = 16;
 
     public static final int buttonLongClickDelay(int ms) {
         return (ms & 0xfff) << 20;
@@ -147,6 +216,34 @@ public class Pebble {
 
     private Set<PebbleWindow> children = new HashSet<>();
 
+    // Windows we expect to push soon.  They get built in whatever
+    // link time the visible windows leave over.
+    private final List<PebbleWindow> prebuilds = new ArrayList<>();
+
+    private final PebbleStringCache mStringCache = new PebbleStringCache(STRING_SLOTS);
+
+    private volatile int apiVersion = API_VERSION_BASE;
+    private boolean textPacking = true;
+
+    public int getApiVersion() {
+        return apiVersion;
+    }
+
+    // Packing is used when the watch supports it unless turned off here.
+    public void setTextPacking(boolean enable) {
+        textPacking = enable;
+    }
+
+    boolean canPackText() {
+        return textPacking && apiVersion >= API_VERSION_PACKED_TEXT;
+    }
+
+    private final PebbleDuplicateFilter mRecent = new PebbleDuplicateFilter(RECENT_PACKETS);
+
+    PebbleStringCache getStringCache() {
+        return mStringCache;
+    }
+
     private Handler mUpdateHandler = new Handler();
 
     public interface PebbleFinishedCallback {
@@ -154,17 +251,38 @@ public class Pebble {
                                     PebbleDictionary resp, PebbleDictionary req);
     };
 
+    // Same as PebbleFinishedCallback, but gets the response already
+    // decoded.  msg is only valid until processMessage returns.
+    public interface PebbleMessageCallback {
+        public void processMessage(Context ctx, PebbleMessage msg, PebbleDictionary req);
+    };
+
     private class PacketInfo {
         PebbleFinishedCallback w;
+        PebbleMessageCallback m;
         PebbleDictionary data;
+        PebbleSendQueue.Entry queued;
         long expires;
 
         PacketInfo(PebbleFinishedCallback w, PebbleDictionary data) {
             this.w = w;
             this.data = data;
-            expires = System.currentTimeMillis() + 10000; // expire in 300ms.
+            expires = System.currentTimeMillis() + PACKET_TIMEOUT; // expire in 300ms.
             // XXXXX FIXME: That should not be hardcoded.
         }
+
+        PacketInfo(PebbleMessageCallback m, PebbleDictionary data) {
+            this((PebbleFinishedCallback) null, data);
+            this.m = m;
+        }
+
+        void dispatch(Context ctx, int tid, PebbleMessage msg, PebbleDictionary resp) {
+            if (m != null) {
+                m.processMessage(ctx, msg, data);
+            } else if (w != null) {
+                w.processIncoming(ctx, tid, resp, data);
+            }
+        }
     };
 
     private UUID mPebbleUUID;
@@ -176,88 +294,123 @@ public class Pebble {
         }
         mPebbleUUID = UUID.fromString(suuid);
 
-        mPebbleDataReceiver = new PebbleKit.PebbleDataReceiver(mPebbleUUID) {
-            @Override
-            public void receiveData(Context ctx, int ptid, final PebbleDictionary pebbleDictionary) {
-                if (pebbleDictionary.contains(KEY_STATUS)) {
-                    // It's a response to something we sent or a status message.
-                    switch(pebbleDictionary.getUnsignedIntegerAsLong(KEY_STATUS).intValue()) {
-                        case STATUS_OK:
-                        case STATUS_ERR:
-                            if (!pebbleDictionary.contains(KEY_TRANSACTION_ID)) {
-                                Log.d(TAG, "Packet Without Transaction ID");
-                                nack(ctx, ptid);
-                                return;
-                            }
-                            ack(ctx, ptid);
-                            int tid = pebbleDictionary.getUnsignedIntegerAsLong(KEY_TRANSACTION_ID).intValue();
-                            if (pebbleDictionary.contains(Pebble.KEY_CLICK)) {
-                                int data = pebbleDictionary.getUnsignedIntegerAsLong(KEY_CLICK).intValue();
-                                Intent i = new Intent(ACTION_BUTTON_PRESS);
-                                i.putExtra("Button", Pebble.clickButton(data));
-                                i.putExtra("Repeating", Pebble.clickRepeating(data));
-                                i.putExtra("Count", Pebble.clickCount(data));
-                                i.putExtra("TimeStamp", tid);
-                                ctx.sendBroadcast(i);
-                                tid = 0;
-                                // tid = 0 is invalid, so we can fall through and
-                                // we won't be processing anything.
-                            }
-
-                            PacketInfo info = getPebbleFinished(tid);
-                            removeInflight(tid);
-                            if (info != null && info.w != null) {
-                                info.w.processIncoming(ctx, tid, pebbleDictionary, info.data);
-                            }
-                            return;
-
-                        case STATUS_STARTED:
-                            started = true;
-                            ack(ctx, ptid);
-                            resetWindows(ctx);
-                            return;
+        mPebbleLogReceiver = new PebbleDataLog(mPebbleUUID);
+    }
 
-                        case STATUS_STOPPED:
-                            started = false;
-                            ack(ctx, ptid);
-                            return;
+    void receiveData(Context ctx, int ptid, PebbleDictionary pebbleDictionary) {
+        PebbleTrace t = trace;
+        if (t != null) {
+            t.record(PebbleTrace.EVENT_IN, ptid, pebbleDictionary);
+        }
 
-                        default:
+        PebbleMessage msg = PebbleMessage.obtain();
+        try {
+            msg.decode(pebbleDictionary);
+            if (msg.hasStatus) {
+                // It's a response to something we sent or a status message.
+                switch (msg.status) {
+                    case STATUS_OK:
+                    case STATUS_ERR:
+                        if (!msg.hasTransactionId) {
+                            Log.d(TAG, "Packet Without Transaction ID");
                             nack(ctx, ptid);
-                            Log.e(TAG, "Unknown status in read: " + pebbleDictionary.getUnsignedIntegerAsLong(KEY_STATUS));
                             return;
-                    }
+                        }
+                        ack(ctx, ptid);
+                        int tid = msg.transactionId;
+                        if (mRecent.isDuplicate(ptid, tid)) {
+                            // Our ack got lost and PebbleKit sent it again.
+                            Log.d(TAG, "Duplicate packet " + ptid + "/" + tid);
+                            return;
+                        }
+                        PebbleLatencyTracer l = latency;
+                        if (msg.hasClick) {
+                            if (l != null) {
+                                l.clicked(clickButton(msg.click));
+                            }
+                            broadcastClick(ctx, msg.click, tid);
+                            tid = 0;
+                            // tid = 0 is invalid, so we can fall through and
+                            // we won't be processing anything.
+                        }
+
+                        if (l != null && msg.status == STATUS_OK) {
+                            l.applied(tid);
+                        }
+                        PacketInfo info = getPebbleFinished(tid);
+                        removeInflight(tid);
+                        if (info != null) {
+                            info.dispatch(ctx, tid, msg, pebbleDictionary);
+                        }
+                        idle(ctx);
+                        return;
+
+                    case STATUS_STARTED:
+                        started = true;
+                        ack(ctx, ptid);
+                        Long v = pebbleDictionary.getUnsignedIntegerAsLong(KEY_API_VERSION);
+                        apiVersion = v == null ? API_VERSION_BASE : v.intValue();
+                        mStringCache.clear();
+                        mRecent.clear();
+                        dropHandles();
+                        resetWindows(ctx);
+                        return;
+
+                    case STATUS_STOPPED:
+                        started = false;
+                        ack(ctx, ptid);
+                        return;
+
+                    default:
+                        nack(ctx, ptid);
+                        Log.e(TAG, "Unknown status in read: " + msg.status);
+                        return;
                 }
             }
-        };
+        } finally {
+            msg.recycle();
+        }
+    }
 
-        mPebbleAckReceiver =
-                new PebbleKit.PebbleAckReceiver(mPebbleUUID) {
-                    @Override
-                    public void receiveAck(Context context, int i) {
-                        Log.d(TAG, "AckReceived");
-                    }
-                };
-
-        mPebbleNackReceiver =
-                new PebbleKit.PebbleNackReceiver(mPebbleUUID) {
-                    @Override
-                    public void receiveNack(Context context, int i) {
-                        Log.d(TAG, "Nack Received.");
-                        nackInflight(context);
-                    }
+    // Reused for every click.  sendBroadcast() copies it, and we
+    // only get here on the thread the receivers run on.
+    private final Intent mClickIntent = new Intent(ACTION_BUTTON_PRESS);
 
-                };
+    private void broadcastClick(Context ctx, int data, int tid) {
+        mClickIntent.putExtra("Button", Pebble.clickButton(data));
+        mClickIntent.putExtra("Repeating", Pebble.clickRepeating(data));
+        mClickIntent.putExtra("Count", Pebble.clickCount(data));
+        mClickIntent.putExtra("TimeStamp", tid);
+        ctx.sendBroadcast(mClickIntent);
+    }
 
+    void receiveAck(Context ctx, int ptid) {
+        Log.d(TAG, "AckReceived");
+        PebbleTrace t = trace;
+        if (t != null) {
+            t.record(PebbleTrace.EVENT_ACK, ptid, null);
+        }
+        PebbleLatencyTracer l = latency;
+        if (l != null) {
+            l.acked(ptid);
+        }
+    }
 
+    void receiveNack(Context ctx, int ptid) {
+        Log.d(TAG, "Nack Received.");
+        PebbleTrace t = trace;
+        if (t != null) {
+            t.record(PebbleTrace.EVENT_NACK, ptid, null);
+        }
+        nackInflight(ctx);
     }
 
     private boolean started = false;
     private boolean connected = false;
-
-    private PebbleReceiver mPebbleReceiver = new PebbleReceiver(this);
-
-    private PebbleKit.PebbleDataReceiver mPebbleDataReceiver;
+    // Set between pebbleDisconnected() and pebbleConnected().  Nothing is
+    // sent meanwhile; sendAsync() packets go to the journal instead.
+    private volatile boolean offline = false;
+    private final PebbleJournal mJournal = new PebbleJournal(QUEUE_SIZE * 8);
 
     private void removeInflight(int tid) {
         synchronized (inflight) {
@@ -265,63 +418,111 @@ public class Pebble {
         }
     }
 
-    private PebbleKit.PebbleAckReceiver mPebbleAckReceiver;
-
-    private PebbleKit.PebbleNackReceiver mPebbleNackReceiver;
+    private PebbleDataLog mPebbleLogReceiver;
 
-    private PebbleKit.PebbleDataLogReceiver mPebbleLogReceiver;
+    public PebbleDataLog getDataLog() {
+        return mPebbleLogReceiver;
+    }
 
     // My transaction id, not to be confused with the Pebble TID.
-    static int transaction_id;
-    static {
-        transaction_id = new Random().nextInt();
+    // The low byte is our PebbleDispatcher slot, so acks and nacks can
+    // be routed back to us even if PebbleKit truncates the id to a byte.
+    private int transaction_id = new Random().nextInt();
+    private int slot = 0;
+
+    void setSlot(int slot) {
+        this.slot = slot;
     }
 
-    synchronized static int nextTransactionID() {
+    UUID getPebbleAppUUID() {
+        return mPebbleUUID;
+    }
+
+    synchronized int nextTransactionID() {
         int tid;
         do {
-            tid = ++transaction_id;
+            tid = (++transaction_id << 8) | slot;
         } while (tid == 0);
         return tid;
     }
 
+    // The synthetic response every inflight packet gets on a NACK.
+    // Shared, so callbacks must not modify it.
+    private static final PebbleDictionary NACK_RESPONSE = new PebbleDictionary();
+    static {
+        NACK_RESPONSE.addUint32(KEY_STATUS, STATUS_ERR);
+        NACK_RESPONSE.addUint32(KEY_ERROR_CODE, ENACK_RECEIVED);
+    }
+    private final PebbleMessage mNackMessage = new PebbleMessage();
+    {
+        mNackMessage.decode(NACK_RESPONSE);
+        mNackMessage.hasTransactionId = true;
+    }
+
+    private final Intent mRetryIntent = new Intent(ACTION_RETRY);
+    private Context mRetryContext;
+    private final Runnable mRetry = new Runnable() {
+        @Override
+        public void run() {
+            mRetryContext.sendBroadcast(mRetryIntent);
+        }
+    };
+
     private void nackInflight(final Context ctx) {
         synchronized (inflight) {
-            PebbleDictionary pd = new PebbleDictionary();
-            pd.addUint32(KEY_STATUS, STATUS_ERR);
-            pd.addUint32(KEY_ERROR_CODE, ENACK_RECEIVED);
             for (int i = 0; i < inflight.size(); ++i) {
                 PacketInfo pi = inflight.valueAt(i);
-                int tid = pi.data.getUnsignedIntegerAsLong(KEY_TRANSACTION_ID).intValue();
-                if (pi.w != null) {
-                    pi.w.processIncoming(ctx, tid, pd, pi.data);
-                }
+                int tid = inflight.keyAt(i);
+                mNackMessage.transactionId = tid;
+                pi.dispatch(ctx, tid, mNackMessage, NACK_RESPONSE);
             }
             inflight.clear();
         }
-        mUpdateHandler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                Intent i = new Intent();
-                i.setAction(ACTION_RETRY);
-                ctx.sendBroadcast(i);
-            }
-        }, RETRY_DELAY);
+        mRetryContext = ctx;
+        mUpdateHandler.removeCallbacks(mRetry);
+        mUpdateHandler.postDelayed(mRetry, RETRY_DELAY);
 
     }
 
     private void nack(Context ctx, int transaction_id) {
-        PebbleKit.sendNackToPebble(ctx, transaction_id);
+        mTransport.sendNack(ctx, transaction_id);
     }
 
     private void ack(Context ctx, int transaction_id) {
-        PebbleKit.sendAckToPebble(ctx, transaction_id);
+        mTransport.sendAck(ctx, transaction_id);
     }
 
-    private void resetWindows(Context ctx) {
+    // Set until idle() gets the link to send FUNC_RESET_WINDOWS.
+    private boolean needReset = false;
+
+    // The watch has lost our windows, or we've lost track of its.  One
+    // FUNC_RESET_WINDOWS clears them all, so it goes out once, and every
+    // window starts again from nothing behind it.
+    void resetWindows(Context ctx) {
         for (PebbleWindow pw: children) {
-            pw.resetWindows(ctx);
+            pw.forgetHandles();
         }
+        needReset = true;
+        idle(ctx);
+    }
+
+    private void sendReset(Context ctx) {
+        PebbleDictionary pd = new PebbleDictionary();
+        pd.addUint32(KEY_METHOD_ID, FUNC_RESET_WINDOWS);
+        sendMessage(ctx, new PebbleMessageCallback() {
+            @Override
+            public void processMessage(Context ctx, PebbleMessage msg, PebbleDictionary req) {
+                if (msg.status != STATUS_ERR) {
+                    return;
+                }
+                if (msg.errorCode == ENACK_RECEIVED) {
+                    // Never got there, idle() tries again after the retry delay.
+                    needReset = true;
+                } else {
+                    Log.e(TAG, "Resetting windows failed: " + msg.errorCode);
+                }
+            }
+        }, pd);
     }
 
     private final SparseArray<PacketInfo> inflight = new SparseArray<>();
@@ -339,28 +540,350 @@ public class Pebble {
 
     void removeChild(PebbleWindow pw) {
         children.remove(pw);
+        removePrebuild(pw);
+    }
+
+    // Makes room on the watch for pw after an ENOMEM by destroying the
+    // window shown least recently, leaving the last one pushed alone.
+    // Windows that are only prebuilt go before any that were shown, and
+    // the root and windows bound by id never go.  Returns false if there was nothing to give up.
+    boolean evict(Context ctx, PebbleWindow pw) {
+        PebbleWindow newest = null;
+        for (PebbleWindow w : children) {
+            if (newest == null || w.getLastShown() > newest.getLastShown()) {
+                newest = w;
+            }
+        }
+        PebbleWindow victim = null;
+        for (PebbleWindow w : children) {
+            if (w == pw || w == newest || !w.isEvictable()) {
+                continue;
+            }
+            if (victim == null || w.getLastShown() < victim.getLastShown()) {
+                victim = w;
+            }
+        }
+        if (victim == null) {
+            return false;
+        }
+        Log.d(TAG, "Out of memory, evicting a window");
+        victim.evict(ctx);
+        return true;
+    }
+
+    void addPrebuild(PebbleWindow pw) {
+        synchronized (prebuilds) {
+            if (!prebuilds.contains(pw)) {
+                prebuilds.add(pw);
+            }
+        }
+    }
+
+    void removePrebuild(PebbleWindow pw) {
+        synchronized (prebuilds) {
+            prebuilds.remove(pw);
+        }
+    }
+
+    private PebbleWindow[] prebuildSnapshot() {
+        synchronized (prebuilds) {
+            return prebuilds.toArray(new PebbleWindow[prebuilds.size()]);
+        }
+    }
+
+    boolean isPrebuild(PebbleWindow pw) {
+        synchronized (prebuilds) {
+            return prebuilds.contains(pw);
+        }
     }
 
     public void sendMessage(Context ctx,  PebbleFinishedCallback w, PebbleDictionary data) {
+        send(ctx, new PacketInfo(w, data));
+    }
+
+    public void sendMessage(Context ctx,  PebbleMessageCallback m, PebbleDictionary data) {
+        send(ctx, new PacketInfo(m, data));
+    }
+
+    private final PebbleSendQueue mSendQueue = new PebbleSendQueue(QUEUE_REJECT, QUEUE_SIZE);
+
+    public void setQueuePolicy(int policy, int capacity) {
+        mSendQueue.setPolicy(policy, capacity);
+    }
+
+    // Key for coalescing sendAsync() packets that set the same attribute.
+    public static long queueKey(int window, int layer, int attribute) {
+        return ((long) (window & 0xffffff) << 40) | ((long) (layer & 0xffffff) << 16)
+                | ((attribute + 1) & 0xffff);
+    }
+
+    // True if data names a window or layer by the handle the watch gave
+    // it, which means nothing once the watch app restarts.
+    static boolean carriesHandles(PebbleDictionary data) {
+        Long w = data.getUnsignedIntegerAsLong(KEY_WINDOW_ID);
+        return (w != null && w != ROOT_WINDOW_HANDLE)
+                || data.contains(KEY_TEXT_LAYER_ID)
+                || data.contains(KEY_CANVAS_LAYER_ID)
+                || data.contains(KEY_LIST_LAYER_ID);
+    }
+
+    // Fails the queued and journaled packets whose handles the watch
+    // has forgotten, rather than have them land on whatever gets the
+    // same handles next.
+    private void dropHandles() {
+        List<PebbleSendQueue.Entry> stale = mSendQueue.removeHandles();
+        stale.addAll(mJournal.removeHandles());
+        for (PebbleSendQueue.Entry e : stale) {
+            for (PebbleFuture f : e.futures) {
+                f.fail(ENOWINDOW);
+            }
+        }
+    }
+
+    private void drainJournal() {
+        if (!mJournal.isEmpty()) {
+            mSendQueue.addAll(mJournal.drain());
+        }
+    }
+
+    public PebbleFuture sendAsync(Context ctx, PebbleDictionary data) {
+        return sendAsync(ctx, 0, data);
+    }
+
+    // Queues data to go out once the link is free.  Safe to call from
+    // any thread; with QUEUE_BLOCK, callers other than the main thread
+    // wait for room in the queue.
+    public PebbleFuture sendAsync(final Context ctx, long key, PebbleDictionary data) {
+        PebbleFuture f = new PebbleFuture();
+        if (offline) {
+            if (!mJournal.record(key, data, f)) {
+                f.fail(EQUEUE_FULL);
+            }
+            return f;
+        }
+        boolean canBlock = Looper.myLooper() != mUpdateHandler.getLooper();
+        try {
+            if (!mSendQueue.add(key, data, f, canBlock)) {
+                f.fail(EQUEUE_FULL);
+                return f;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            f.fail(EQUEUE_FULL);
+            return f;
+        }
+        mUpdateHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                idle(ctx);
+            }
+        });
+        return f;
+    }
+
+    private void sendQueued(Context ctx, final PebbleSendQueue.Entry e) {
+        PacketInfo pi = new PacketInfo(new PebbleMessageCallback() {
+            @Override
+            public void processMessage(Context ctx, PebbleMessage msg, PebbleDictionary req) {
+                for (PebbleFuture f : e.futures) {
+                    f.complete(msg);
+                }
+            }
+        }, e.data);
+        pi.queued = e;
+        send(ctx, pi);
+    }
+
+    // Called whenever the link may have become free.  Queued packets go
+    // first, then windows that deferred work because we were busy.
+    void idle(Context ctx) {
+        if (isBusy()) {
+            return;
+        }
+        if (needReset) {
+            // Nothing else makes sense to the watch until it's done.
+            needReset = false;
+            sendReset(ctx);
+            return;
+        }
+        // Anything journaled while we were disconnected goes first.
+        drainJournal();
+        PebbleSendQueue.Entry e = mSendQueue.poll();
+        if (e != null) {
+            sendQueued(ctx, e);
+            return;
+        }
+        for (PebbleWindow pw : children) {
+            if (pw.hasPendingState() && !isPrebuild(pw)) {
+                pw.updateStatus(ctx);
+                if (isBusy()) {
+                    return;
+                }
+            }
+        }
+
+        // Nothing else wants the link, so build the next windows.
+        // Declared order is priority order.
+        boolean was = building;
+        building = true;
+        try {
+            for (PebbleWindow pw : prebuildSnapshot()) {
+                if (pw.hasPendingState()) {
+                    pw.updateStatus(ctx);
+                } else if (pw.needsBuild()) {
+                    pw.update(ctx);
+                }
+                if (isBusy()) {
+                    return;
+                }
+            }
+        } finally {
+            building = was;
+        }
+    }
+
+    // Set while idle() is building prebuilt windows.  Anywhere else a
+    // prebuilt window goes back through idle() between steps, so it
+    // never holds the link while something on screen is waiting.
+    private boolean building = false;
+
+    boolean isBuilding() {
+        return building;
+    }
+
+    private void send(Context ctx, PacketInfo pi) {
         int tid = nextTransactionID();
+        PebbleDictionary data = pi.data;
 
         data.addUint32(KEY_TRANSACTION_ID, tid);
         synchronized (inflight) {
-            inflight.put(tid, new PacketInfo(w, data));
+            inflight.put(tid, pi);
         }
 
-        PebbleKit.sendDataToPebbleWithTransactionId(ctx, mPebbleUUID,
-                data, tid);
+        PebbleTrace t = trace;
+        if (t != null) {
+            t.record(PebbleTrace.EVENT_OUT, tid, data);
+        }
+        PebbleLatencyTracer l = latency;
+        if (l != null && isDisplayUpdate(data)) {
+            l.textSent(tid);
+        }
+        mTransport.sendData(ctx, mPebbleUUID, data, tid);
+
+        // If nothing comes back, expire it and move on.
+        mExpiryContext = ctx;
+        mUpdateHandler.removeCallbacks(mExpiryCheck);
+        mUpdateHandler.postDelayed(mExpiryCheck, PACKET_TIMEOUT);
     }
 
+    private Context mExpiryContext;
+    private final Runnable mExpiryCheck = new Runnable() {
+        @Override
+        public void run() {
+            idle(mExpiryContext);
+        }
+    };
+
     private void resendMessage(Context ctx, int tid) {
         synchronized (inflight) {
-            PebbleKit.sendDataToPebbleWithTransactionId(ctx, mPebbleUUID,
-                    inflight.get(tid).data, tid);
+            PebbleDictionary data = inflight.get(tid).data;
+            PebbleTrace t = trace;
+            if (t != null) {
+                t.record(PebbleTrace.EVENT_OUT, tid, data);
+            }
+            mTransport.sendData(ctx, mPebbleUUID, data, tid);
+        }
+    }
+
+    // Where outgoing packets go.  Normally PebbleKit, but replays
+    // and simulations substitute their own.
+    public interface PebbleTransport {
+        void sendData(Context ctx, UUID uuid, PebbleDictionary data, int tid);
+        void sendAck(Context ctx, int tid);
+        void sendNack(Context ctx, int tid);
+    }
+
+    public static final PebbleTransport PEBBLEKIT_TRANSPORT = new PebbleTransport() {
+        @Override
+        public void sendData(Context ctx, UUID uuid, PebbleDictionary data, int tid) {
+            PebbleKit.sendDataToPebbleWithTransactionId(ctx, uuid, data, tid);
+        }
+
+        @Override
+        public void sendAck(Context ctx, int tid) {
+            PebbleKit.sendAckToPebble(ctx, tid);
+        }
+
+        @Override
+        public void sendNack(Context ctx, int tid) {
+            PebbleKit.sendNackToPebble(ctx, tid);
+        }
+    };
+
+    private volatile PebbleTransport mTransport = PEBBLEKIT_TRANSPORT;
+
+    public PebbleTransport getTransport() {
+        return mTransport;
+    }
+
+    public void setTransport(PebbleTransport transport) {
+        mTransport = transport;
+    }
+
+    // Everything that talks to the watch runs here.
+    Handler getHandler() {
+        return mUpdateHandler;
+    }
+
+    private volatile PebbleTrace trace = null;
+    private volatile PebbleLatencyTracer latency = null;
+
+    // Records all traffic and connection changes to f until stopTrace().
+    public void startTrace(File f) throws IOException {
+        stopTrace();
+        trace = new PebbleTrace(f);
+    }
+
+    public void stopTrace() {
+        PebbleTrace t = trace;
+        trace = null;
+        if (t != null) {
+            t.close();
         }
     }
 
+    // Times each click until the next display update is on the watch,
+    // see PebbleLatencyTracer.  Keeps the last spans completed
+    // interactions.
+    public PebbleLatencyTracer startLatencyTrace(int spans) {
+        PebbleLatencyTracer l = new PebbleLatencyTracer(spans);
+        latency = l;
+        return l;
+    }
+
+    public void stopLatencyTrace() {
+        latency = null;
+    }
+
+    // Changes what a layer shows, as opposed to how.
+    private static boolean isDisplayUpdate(PebbleDictionary data) {
+        Long method = data.getUnsignedIntegerAsLong(KEY_METHOD_ID);
+        return method != null && method == FUNC_APPLY_ATTRIBUTES
+                && (data.contains(KEY_ATTRIBUTE_TEXT) || data.contains(KEY_ATTRIBUTE_TEXT_SLOT)
+                || data.contains(KEY_ATTRIBUTE_TEXT_PACKED) || data.contains(KEY_ATTRIBUTE_FIELDS)
+                || data.contains(KEY_ATTRIBUTE_LIST_ROWS) || data.contains(KEY_ATTRIBUTE_CANVAS_OPS));
+    }
+
     public void pebbleConnected(Context ctx) {
+        PebbleTrace t = trace;
+        if (t != null) {
+            t.record(PebbleTrace.EVENT_CONNECT, 0, null);
+        }
+        offline = false;
+        // Start on the journal before the windows get a look in; once
+        // the link is busy their updates wait behind it.
+        drainJournal();
+        idle(ctx);
         if (connected == false) {
             connected = true;
             for (PebbleWindow pw: children) {
@@ -368,31 +891,55 @@ public class Pebble {
 
             }
         }
+        idle(ctx);
     }
 
     public void pebbleDisconnected(Context ctx) {
+        PebbleTrace t = trace;
+        if (t != null) {
+            t.record(PebbleTrace.EVENT_DISCONNECT, 0, null);
+        }
         connected = false;
+        offline = true;
+        // Whatever was queued would only go stale waiting.
+        PebbleSendQueue.Entry e;
+        while ((e = mSendQueue.poll()) != null) {
+            if (!mJournal.record(e)) {
+                for (PebbleFuture f : e.futures) {
+                    f.fail(EQUEUE_FULL);
+                }
+            }
+        }
     }
 
-    public void registerHandlers(Context ctx) {
-        PebbleKit.registerReceivedAckHandler(ctx, mPebbleAckReceiver);
-        PebbleKit.registerReceivedDataHandler(ctx, mPebbleDataReceiver);
-        PebbleKit.registerDataLogReceiver(ctx, mPebbleLogReceiver);
-        PebbleKit.registerReceivedNackHandler(ctx, mPebbleNackReceiver);
+    // Keeps the offline journal in file so that sendAsync() packets that
+    // don't name a window or layer handle survive the process.  Anything
+    // already in file is sent on the next idle link.  Window and layer
+    // state isn't kept; the app rebuilds it when it recreates its windows.
+    public void setJournalFile(File file) {
+        mJournal.setFile(file);
+    }
+
+    // Data, ack, nack, connection and retry broadcasts are shared by
+    // every Pebble in the process through PebbleDispatcher, which also
+    // registers our data log receiver.
+    public void registerHandlers(Context ctx) throws PebbleException {
+        PebbleDispatcher.getInstance().register(ctx, this);
+        // Ask for anything the watch logged while we weren't listening.
+        PebbleKit.requestDataLogsForApp(ctx, mPebbleUUID);
 
         connected = PebbleKit.isWatchConnected(ctx);
+        // No disconnect broadcast comes for a watch that was already away,
+        // so start out journaling rather than sending into timeouts.
+        offline = !connected;
     }
 
-    public void registerReceivers(Context ctx) {
-        PebbleKit.registerPebbleConnectedReceiver(ctx, mPebbleReceiver);
-        PebbleKit.registerPebbleDisconnectedReceiver(ctx, mPebbleReceiver);
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(ACTION_RETRY);
-        ctx.registerReceiver(mPebbleReceiver, filter);
+    public void registerReceivers(Context ctx) throws PebbleException {
+        PebbleDispatcher.getInstance().register(ctx, this);
     }
 
     public void unregisterReceivers(Context ctx) {
-        ctx.unregisterReceiver(mPebbleReceiver);
+        PebbleDispatcher.getInstance().unregister(this);
     }
 
     public void start(Context ctx) {
@@ -404,11 +951,27 @@ public class Pebble {
     }
 
     public boolean isBusy() {
+        if (offline) {
+            // Everything waits for pebbleConnected().
+            return true;
+        }
         synchronized (inflight) {
             long now = System.currentTimeMillis();
             for (int i = 0; i < inflight.size(); ++i ) {
-                if (now  - inflight.valueAt(i).expires >= 0) {
+                PacketInfo pi = inflight.valueAt(i);
+                if (now  - pi.expires >= 0) {
                     inflight.removeAt(i--);
+                    Long slot = pi.data.getUnsignedIntegerAsLong(KEY_ATTRIBUTE_TEXT_STORE);
+                    if (slot != null) {
+                        // No callback will hear about it, and we don't
+                        // know whether the watch stored it.
+                        mStringCache.invalidate(slot.intValue());
+                    }
+                    if (pi.queued != null) {
+                        for (PebbleFuture f : pi.queued.futures) {
+                            f.fail(ETIMEDOUT);
+                        }
+                    }
                 }
             }
             return (inflight.size() > 0);
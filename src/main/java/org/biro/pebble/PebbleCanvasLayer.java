@@ -0,0 +1,343 @@
+package org.biro.pebble;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * A layer the watch draws from a display list.  Draw calls between
+ * begin() and end() are recorded as compact commands, and update()
+ * only sends the commands that differ from what the watch already has.
+ * The patch is a sequence of (index, command) pairs in
+ * KEY_ATTRIBUTE_CANVAS_OPS, and KEY_ATTRIBUTE_CANVAS_COUNT is the
+ * length of the whole list so the watch can drop trailing commands.
+ */
+public class PebbleCanvasLayer implements PebbleLayer {
+    private static final String TAG = "PebbleCanvasLayer: ";
+
+    // Keep each patch small enough to fit in one AppMessage.
+    private static final int MAX_PATCH_BYTES = 96;
+    // A command and its index byte have to fit in a patch by themselves.
+    private static final int MAX_COMMAND_BYTES = MAX_PATCH_BYTES - 1;
+    private static final int MAX_PATH_POINTS = (MAX_COMMAND_BYTES - 3) / 4;
+    private static final int MAX_TEXT_BYTES = MAX_COMMAND_BYTES - 6;
+    private static final int MAX_COMMANDS = 255;
+
+    private int clh = -1;
+
+    // The last complete frame and what we know the watch has.
+    private List<byte[]> frame = new ArrayList<>();
+    private final List<byte[]> onWatch = new ArrayList<>();
+
+    // Commands recorded since begin().
+    private List<byte[]> recording = null;
+
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    private int id = 0;
+
+    @Override
+    public int getHandle() {
+        return clh;
+    }
+
+    @Override
+    public int getHandleKey() {
+        return Pebble.KEY_CANVAS_LAYER_ID;
+    }
+
+    @Override
+    public void clearHandle() {
+        clh = -1;
+        // a new layer on the watch starts with an empty list.
+        synchronized (onWatch) {
+            onWatch.clear();
+        }
+    }
+
+    // Starts recording a new frame.
+    public void begin() {
+        recording = new ArrayList<>();
+    }
+
+    // Makes the recorded frame the one to send.
+    public void end() {
+        if (recording == null) {
+            return;
+        }
+        frame = recording;
+        recording = null;
+    }
+
+    public void setStrokeColor(int color) {
+        record(new byte[]{(byte) Pebble.CANVAS_OP_STROKE_COLOR, (byte) color});
+    }
+
+    public void setFillColor(int color) {
+        record(new byte[]{(byte) Pebble.CANVAS_OP_FILL_COLOR, (byte) color});
+    }
+
+    public void drawLine(int x0, int y0, int x1, int y1) {
+        record(encode(Pebble.CANVAS_OP_LINE, x0, y0, x1, y1));
+    }
+
+    public void drawRect(int x, int y, int w, int h) {
+        record(encode(Pebble.CANVAS_OP_RECT, x, y, w, h));
+    }
+
+    public void fillRect(int x, int y, int w, int h) {
+        record(encode(Pebble.CANVAS_OP_FILL_RECT, x, y, w, h));
+    }
+
+    public void drawCircle(int x, int y, int r) {
+        record(encode(Pebble.CANVAS_OP_CIRCLE, x, y, r));
+    }
+
+    public void fillCircle(int x, int y, int r) {
+        record(encode(Pebble.CANVAS_OP_FILL_CIRCLE, x, y, r));
+    }
+
+    // points is x0, y0, x1, y1, ...  Long paths are split into pieces
+    // that share their end points, so each piece fits in a packet and
+    // only the pieces that changed get sent again.
+    public void drawPath(int[] points, boolean closed) {
+        int total = points.length / 2;
+        if (total <= MAX_PATH_POINTS) {
+            recordPath(points, 0, total, closed);
+            return;
+        }
+        int start = 0;
+        while (start < total - 1) {
+            int n = Math.min(MAX_PATH_POINTS, total - start);
+            recordPath(points, start, n, false);
+            start += n - 1;
+        }
+        if (closed) {
+            int last = (total - 1) * 2;
+            drawLine(points[last], points[last + 1], points[0], points[1]);
+        }
+    }
+
+    private void recordPath(int[] points, int start, int n, boolean closed) {
+        byte[] b = new byte[3 + n * 4];
+        b[0] = (byte) Pebble.CANVAS_OP_PATH;
+        b[1] = (byte) (closed ? 1 : 0);
+        b[2] = (byte) n;
+        for (int i = 0; i < n * 2; ++i) {
+            putShort(b, 3 + i * 2, points[start * 2 + i]);
+        }
+        record(b);
+    }
+
+    public void drawText(int x, int y, String text) {
+        byte[] t;
+        try {
+            t = text.getBytes("UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            Log.d(TAG, "UnsupportedIOEncodingException: " + e.getMessage());
+            return;
+        }
+        int len = t.length;
+        if (len > MAX_TEXT_BYTES) {
+            // Cut it short, but not in the middle of a character.
+            len = MAX_TEXT_BYTES;
+            while (len > 0 && (t[len] & 0xc0) == 0x80) {
+                len--;
+            }
+        }
+        byte[] b = new byte[6 + len];
+        b[0] = (byte) Pebble.CANVAS_OP_TEXT;
+        putShort(b, 1, x);
+        putShort(b, 3, y);
+        b[5] = (byte) len;
+        System.arraycopy(t, 0, b, 6, len);
+        record(b);
+    }
+
+    private void record(byte[] cmd) {
+        if (recording == null) {
+            Log.e(TAG, "Draw call outside of begin()/end()");
+            return;
+        }
+        if (recording.size() >= MAX_COMMANDS) {
+            Log.e(TAG, "Display list full");
+            return;
+        }
+        if (cmd.length > MAX_COMMAND_BYTES) {
+            // It could never be sent, and would be retried forever.
+            Log.e(TAG, "Command too big for a packet: " + cmd.length);
+            return;
+        }
+        recording.add(cmd);
+    }
+
+    private static byte[] encode(int op, int... args) {
+        byte[] b = new byte[1 + args.length * 2];
+        b[0] = (byte) op;
+        for (int i = 0; i < args.length; ++i) {
+            putShort(b, 1 + i * 2, args[i]);
+        }
+        return b;
+    }
+
+    private static void putShort(byte[] b, int off, int v) {
+        b[off] = (byte) v;
+        b[off + 1] = (byte) (v >> 8);
+    }
+
+    private boolean same(int i) {
+        return i < onWatch.size() && Arrays.equals(frame.get(i), onWatch.get(i));
+    }
+
+    @Override
+    public boolean changed() {
+        synchronized (onWatch) {
+            if (frame.size() != onWatch.size()) {
+                return true;
+            }
+            for (int i = 0; i < frame.size(); ++i) {
+                if (!same(i)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private void connect(final PebbleWindow pw, Context ctx) {
+        PebbleDictionary pd = new PebbleDictionary();
+        if (id != 0) {
+            pd.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_GET_CANVAS_LAYER_BY_ID);
+            pd.addUint32(Pebble.KEY_ID, id);
+        } else {
+            pd.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_NEW_CANVAS_LAYER);
+        }
+        pw.send(ctx, pd, new Pebble.PebbleMessageCallback() {
+            @Override
+            public void processMessage(Context ctx, PebbleMessage msg, PebbleDictionary req) {
+                if (msg.status == Pebble.STATUS_OK) {
+                    clh = msg.returnValue;
+                    pw.updateStatus(ctx);
+                } else {
+                    pw.handleError(ctx, msg);
+                }
+            }
+        });
+    }
+
+    // returns true when we started something and
+    // have to wait.
+    @Override
+    public boolean update(Context ctx, final PebbleWindow pw) {
+        if (clh < 0) {
+            connect(pw, ctx);
+            return true;
+        }
+
+        if (!changed()) {
+            return false;
+        }
+
+        final List<byte[]> sending = frame;
+        final List<Integer> indices = new ArrayList<>();
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        synchronized (onWatch) {
+            for (int i = 0; i < sending.size(); ++i) {
+                if (same(i)) {
+                    continue;
+                }
+                byte[] cmd = sending.get(i);
+                if (patch.size() > 0 && patch.size() + 1 + cmd.length > MAX_PATCH_BYTES) {
+                    break; // the rest goes in the next packet.
+                }
+                patch.write(i);
+                patch.write(cmd, 0, cmd.length);
+                indices.add(i);
+            }
+        }
+
+        PebbleDictionary pd = new PebbleDictionary();
+        pd.addUint32(Pebble.KEY_CANVAS_LAYER_ID, clh);
+        pd.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_APPLY_ATTRIBUTES);
+        pd.addUint32(Pebble.KEY_ATTRIBUTE_CANVAS_COUNT, sending.size());
+        if (patch.size() > 0) {
+            pd.addBytes(Pebble.KEY_ATTRIBUTE_CANVAS_OPS, patch.toByteArray());
+        }
+
+        pw.send(ctx, pd, new Pebble.PebbleMessageCallback() {
+            @Override
+            public void processMessage(Context ctx, PebbleMessage msg, PebbleDictionary req) {
+                if (msg.status == Pebble.STATUS_ERR) {
+                    if (!neverDelivered(msg.errorCode)) {
+                        // We don't know what the watch has anymore.
+                        synchronized (onWatch) {
+                            onWatch.clear();
+                        }
+                    }
+                    pw.handleError(ctx, msg);
+                    return;
+                }
+                applied(sending, indices);
+                pw.updateStatus(ctx);
+            }
+        });
+
+        return true;
+    }
+
+    /**
+     * A packet that was nacked or never queued didn't reach the watch, so it still
+     * has what we last saw applied.
+     */
+    static boolean neverDelivered(int errorCode) {
+        return errorCode == Pebble.ENACK_RECEIVED || errorCode == Pebble.EQUEUE_FULL;
+    }
+
+    private void applied(List<byte[]> sent, List<Integer> indices) {
+        synchronized (onWatch) {
+            while (onWatch.size() > sent.size()) {
+                onWatch.remove(onWatch.size() - 1);
+            }
+            while (onWatch.size() < sent.size()) {
+                onWatch.add(null); // NOP on the watch until we fill it in.
+            }
+            for (int i : indices) {
+                onWatch.set(i, sent.get(i));
+            }
+        }
+    }
+}
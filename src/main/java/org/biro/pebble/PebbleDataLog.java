@@ -0,0 +1,252 @@
+package org.biro.pebble;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.getpebble.android.kit.PebbleKit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Receives the watch's data logging sessions.  Records are queued per
+ * session and a background thread appends them in batches to memory
+ * mapped segment files under files/pebble_log/<tag>/.  Use
+ * openReader() to pull the records back out, including while the
+ * session is still being written.
+ * <p/>
+ * Segment layout: int magic, int committed length, then records of
+ * [type u8][length u16][payload], all little endian.
+ */
+public class PebbleDataLog extends PebbleKit.PebbleDataLogReceiver {
+    private static final String TAG = "PebbleDataLog: ";
+
+    public static final int RECORD_BYTES = 0;
+    public static final int RECORD_UINT = 1;
+    public static final int RECORD_INT = 2;
+
+    static final int SEGMENT_MAGIC = 0x50444c31; // "PDL1"
+    static final int SEGMENT_HEADER = 8;
+    static final int SEGMENT_SIZE = 256 * 1024;
+    static final String LOG_DIR = "pebble_log";
+
+    // Hand records to the writer once this many are queued, or once the
+    // oldest has waited this long, so a slow session still shows up.
+    private static final int BATCH = 64;
+    private static final long MAX_DELAY_MS = 1000;
+
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor();
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private volatile File baseDir;
+
+    public PebbleDataLog(UUID uuid) {
+        super(uuid);
+    }
+
+    private class Session implements Runnable {
+        final long timestamp;
+        final long tag;
+        final ConcurrentLinkedQueue<byte[]> pending = new ConcurrentLinkedQueue<>();
+        final AtomicInteger count = new AtomicInteger();
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        final AtomicBoolean timed = new AtomicBoolean();
+        volatile boolean finished = false;
+
+        // Only touched by the writer thread.
+        int seq = 0;
+        RandomAccessFile file;
+        MappedByteBuffer segment;
+
+        Session(long timestamp, long tag) {
+            this.timestamp = timestamp;
+            this.tag = tag;
+        }
+
+        void add(byte[] record) {
+            pending.add(record);
+            if (count.incrementAndGet() >= BATCH) {
+                schedule();
+            } else if (timed.compareAndSet(false, true)) {
+                writer.schedule(this, MAX_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                writer.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            scheduled.set(false);
+            timed.set(false);
+            byte[] r;
+            try {
+                while ((r = pending.poll()) != null) {
+                    count.decrementAndGet();
+                    write(r);
+                }
+                if (finished) {
+                    close();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Writing log segment failed: " + e.getMessage());
+            }
+        }
+
+        private void write(byte[] r) throws IOException {
+            if (segment == null || segment.remaining() < r.length) {
+                openSegment();
+            }
+            segment.put(r);
+            // Publish the record to readers.
+            segment.putInt(4, segment.position());
+        }
+
+        private void openSegment() throws IOException {
+            close();
+            File dir = tagDir(baseDir, tag);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir);
+            }
+            // The session may have been written before, by an earlier
+            // process or before the watch finished it and came back to it,
+            // so start after any segment it already has.
+            File f;
+            do {
+                f = new File(dir, segmentName(timestamp, seq++));
+            } while (f.exists());
+            file = new RandomAccessFile(f, "rw");
+            segment = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+            segment.order(ByteOrder.LITTLE_ENDIAN);
+            segment.putInt(0, SEGMENT_MAGIC);
+            segment.putInt(4, SEGMENT_HEADER);
+            segment.position(SEGMENT_HEADER);
+        }
+
+        private void close() throws IOException {
+            if (segment != null) {
+                segment.force();
+                segment = null;
+            }
+            if (file != null) {
+                file.close();
+                file = null;
+            }
+        }
+    }
+
+    static File tagDir(File base, long tag) {
+        return new File(new File(base, LOG_DIR), Long.toString(tag));
+    }
+
+    static String segmentName(long timestamp, int seq) {
+        // Zero padded so the names sort in write order.
+        return String.format(Locale.US, "%016x-%08d.seg", timestamp, seq);
+    }
+
+    private Session session(Context ctx, Long timestamp, Long tag) {
+        if (baseDir == null) {
+            baseDir = ctx.getFilesDir();
+        }
+        String key = timestamp + ":" + tag;
+        Session s = sessions.get(key);
+        if (s == null) {
+            s = new Session(timestamp, tag);
+            sessions.put(key, s);
+        }
+        return s;
+    }
+
+    private static byte[] record(int type, int len) {
+        byte[] r = new byte[3 + len];
+        r[0] = (byte) type;
+        r[1] = (byte) len;
+        r[2] = (byte) (len >> 8);
+        return r;
+    }
+
+    private static byte[] record(int type, long value) {
+        byte[] r = record(type, 8);
+        for (int i = 0; i < 8; ++i) {
+            r[3 + i] = (byte) (value >> (8 * i));
+        }
+        return r;
+    }
+
+    @Override
+    public void receiveData(Context ctx, UUID logUuid, Long timestamp, Long tag, byte[] data) {
+        int len = Math.min(data.length, 0xffff);
+        byte[] r = record(RECORD_BYTES, len);
+        System.arraycopy(data, 0, r, 3, len);
+        session(ctx, timestamp, tag).add(r);
+    }
+
+    @Override
+    public void receiveData(Context ctx, UUID logUuid, Long timestamp, Long tag, Long data) {
+        session(ctx, timestamp, tag).add(record(RECORD_UINT, data));
+    }
+
+    @Override
+    public void receiveData(Context ctx, UUID logUuid, Long timestamp, Long tag, int data) {
+        // Widened, or it would pick the record(type, len) overload.
+        session(ctx, timestamp, tag).add(record(RECORD_INT, (long) data));
+    }
+
+    @Override
+    public void onFinishSession(Context ctx, UUID logUuid, Long timestamp, Long tag) {
+        Session s = sessions.remove(timestamp + ":" + tag);
+        if (s != null) {
+            s.finished = true;
+            s.schedule();
+        }
+    }
+
+    // Pushes every queued record out to its segment.
+    public void flush() {
+        for (Session s : sessions.values()) {
+            s.schedule();
+        }
+    }
+
+    public PebbleDataLogReader openReader(Context ctx, long tag) {
+        return new PebbleDataLogReader(tagDir(ctx.getFilesDir(), tag));
+    }
+}
@@ -0,0 +1,222 @@
+package org.biro.pebble;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Pulls records for one data logging tag out of the segments written by
+ * PebbleDataLog, oldest session first.  Each session is read from its own
+ * position, so a session the watch resumes after a newer one started still
+ * has its new records picked up.  next() returns false when it has caught
+ * up with the writer; calling it again later picks up anything new.
+ * <p/>
+ * Not thread safe.  Use one reader per consumer.
+ */
+public class PebbleDataLogReader {
+    private final File dir;
+
+    // Read positions by session, see PebbleDataLog.segmentName().  Sorted,
+    // so older sessions are read first.
+    private final Map<String, Cursor> cursors = new TreeMap<>();
+    // The session the current record came from.
+    private Cursor current;
+
+    private int type;
+    private int length;
+    private int offset;
+
+    PebbleDataLogReader(File dir) {
+        this.dir = dir;
+    }
+
+    private class Cursor {
+        final String session;
+        String segmentName;
+        RandomAccessFile file;
+        MappedByteBuffer segment;
+
+        Cursor(String session) {
+            this.session = session;
+        }
+
+        // Reads the session's next record.  names is the directory
+        // listing, or null to stay within the segment already open.
+        boolean next(String[] names) throws IOException {
+            while (true) {
+                if (segment == null && (names == null || !openNext(names))) {
+                    return false;
+                }
+                int committed = segment.getInt(4);
+                int pos = segment.position();
+                if (pos < committed) {
+                    type = segment.get(pos) & 0xff;
+                    length = (segment.get(pos + 1) & 0xff) | (segment.get(pos + 2) & 0xff) << 8;
+                    offset = pos + 3;
+                    segment.position(offset + length);
+                    return true;
+                }
+                // Caught up with this segment.  Only move on once the
+                // writer has started a newer one, and then only after
+                // picking up anything it committed here before it did.
+                if (names == null || nextName(names, segmentName) == null) {
+                    return false;
+                }
+                if (segment.getInt(4) > pos) {
+                    continue;
+                }
+                close();
+            }
+        }
+
+        private String nextName(String[] names, String after) {
+            for (String n : names) {
+                if (n.startsWith(session) && (after == null || n.compareTo(after) > 0)) {
+                    return n;
+                }
+            }
+            return null;
+        }
+
+        private boolean openNext(String[] names) throws IOException {
+            String n = nextName(names, segmentName);
+            while (n != null) {
+                file = new RandomAccessFile(new File(dir, n), "r");
+                segment = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+                segment.order(ByteOrder.LITTLE_ENDIAN);
+                if (segment.capacity() >= PebbleDataLog.SEGMENT_HEADER
+                        && segment.getInt(0) == PebbleDataLog.SEGMENT_MAGIC) {
+                    segmentName = n;
+                    segment.position(PebbleDataLog.SEGMENT_HEADER);
+                    return true;
+                }
+                close();
+                // The writer creates the file before it writes the header, so
+                // this may just be too new.  Try it again next time, unless the
+                // session has already moved on to another segment, in which
+                // case it was left behind and never will be.
+                String after = nextName(names, n);
+                if (after == null) {
+                    return false;
+                }
+                segmentName = n;
+                n = after;
+            }
+            return false;
+        }
+
+        void close() throws IOException {
+            segment = null;
+            if (file != null) {
+                file.close();
+                file = null;
+            }
+        }
+    }
+
+    // Advances to the next record.  Returns false if there isn't one yet.
+    public boolean next() throws IOException {
+        // Keep going in the same segment without listing the directory.
+        if (current != null && current.next(null)) {
+            return true;
+        }
+        String[] names = list();
+        for (String n : names) {
+            String session = session(n);
+            if (!cursors.containsKey(session)) {
+                cursors.put(session, new Cursor(session));
+            }
+        }
+        for (Cursor c : cursors.values()) {
+            if (c.next(names)) {
+                current = c;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    // Value of a RECORD_UINT or RECORD_INT record.
+    public long getLong() {
+        long v = 0;
+        for (int i = 0; i < 8 && i < length; ++i) {
+            v |= (long) (current.segment.get(offset + i) & 0xff) << (8 * i);
+        }
+        return v;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    // Copies the payload into buf and returns the number of bytes copied.
+    public int getBytes(byte[] buf) {
+        int n = Math.min(buf.length, length);
+        for (int i = 0; i < n; ++i) {
+            buf[i] = current.segment.get(offset + i);
+        }
+        return n;
+    }
+
+    // The sorted segment names.
+    private String[] list() {
+        String[] names = dir.list();
+        if (names == null) {
+            return new String[0];
+        }
+        int n = 0;
+        for (String name : names) {
+            if (name.endsWith(".seg") && name.indexOf('-') > 0) {
+                names[n++] = name;
+            }
+        }
+        names = Arrays.copyOf(names, n);
+        Arrays.sort(names);
+        return names;
+    }
+
+    // Segment names start with the session's timestamp, see
+    // PebbleDataLog.segmentName().
+    private static String session(String name) {
+        return name.substring(0, name.indexOf('-') + 1);
+    }
+
+    public void close() throws IOException {
+        for (Cursor c : cursors.values()) {
+            c.close();
+        }
+        current = null;
+    }
+}
@@ -0,0 +1,205 @@
+package org.biro.pebble;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.util.Log;
+
+import com.getpebble.android.kit.Constants;
+import com.getpebble.android.kit.PebbleKit;
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import org.json.JSONException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * One set of PebbleKit receivers for the whole process.  Incoming data
+ * is routed to the Pebble for its app UUID, and acks and nacks by the
+ * slot number each Pebble puts in the low byte of its transaction ids.
+ * Connection changes and retries go to every registered Pebble.  Each
+ * Pebble's data log receiver is registered and unregistered with it.
+ */
+public class PebbleDispatcher {
+    private static final String TAG = "PebbleDispatcher: ";
+
+    static final int MAX_SLOTS = 256;
+
+    private static PebbleDispatcher instance = null;
+
+    synchronized public static PebbleDispatcher getInstance() {
+        if (instance == null) {
+            instance = new PebbleDispatcher();
+        }
+        return instance;
+    }
+
+    private final Map<UUID, Pebble> byUuid = new HashMap<>();
+    // Slot 0 is left for Pebbles that never registered.
+    private final Pebble[] slots = new Pebble[MAX_SLOTS];
+    private final List<Pebble> registered = new ArrayList<>();
+    private Context registeredContext = null;
+
+    private final BroadcastReceiver dataReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context ctx, Intent intent) {
+            UUID uuid = (UUID) intent.getSerializableExtra(Constants.APP_UUID);
+            Pebble p;
+            synchronized (PebbleDispatcher.this) {
+                p = byUuid.get(uuid);
+            }
+            if (p == null) {
+                return; // someone else's app.
+            }
+            int ptid = intent.getIntExtra(Constants.TRANSACTION_ID, -1);
+            PebbleDictionary pd;
+            try {
+                pd = PebbleDictionary.fromJson(intent.getStringExtra(Constants.MSG_DATA));
+            } catch (JSONException e) {
+                Log.e(TAG, "Bad message data: " + e.getMessage());
+                return;
+            }
+            p.receiveData(ctx, ptid, pd);
+        }
+    };
+
+    private final BroadcastReceiver ackReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context ctx, Intent intent) {
+            int tid = intent.getIntExtra(Constants.TRANSACTION_ID, -1);
+            Pebble p = owner(tid);
+            if (p != null) {
+                p.receiveAck(ctx, tid);
+            }
+        }
+    };
+
+    private final BroadcastReceiver nackReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context ctx, Intent intent) {
+            int tid = intent.getIntExtra(Constants.TRANSACTION_ID, -1);
+            Pebble p = owner(tid);
+            if (p != null) {
+                p.receiveNack(ctx, tid);
+            }
+        }
+    };
+
+    private final PebbleReceiver connectionReceiver = new PebbleReceiver(this);
+
+    private synchronized Pebble owner(int tid) {
+        return slots[tid & (MAX_SLOTS - 1)];
+    }
+
+    // Gives p a transaction id slot and starts routing its traffic.
+    public synchronized void register(Context ctx, Pebble p) throws PebbleException {
+        if (registered.contains(p)) {
+            return;
+        }
+        int slot = 1;
+        while (slot < MAX_SLOTS && slots[slot] != null) {
+            slot++;
+        }
+        if (slot == MAX_SLOTS) {
+            throw new PebbleException("Too many Pebble instances");
+        }
+        Pebble other = byUuid.get(p.getPebbleAppUUID());
+        if (other != null) {
+            // Its data would have nowhere to go.
+            throw new PebbleException("Another Pebble already has app UUID " + p.getPebbleAppUUID());
+        }
+        slots[slot] = p;
+        p.setSlot(slot);
+        byUuid.put(p.getPebbleAppUUID(), p);
+        registered.add(p);
+
+        if (registeredContext == null) {
+            registeredContext = ctx.getApplicationContext();
+            registeredContext.registerReceiver(dataReceiver,
+                    new IntentFilter(Constants.INTENT_APP_RECEIVE));
+            registeredContext.registerReceiver(ackReceiver,
+                    new IntentFilter(Constants.INTENT_APP_RECEIVE_ACK));
+            registeredContext.registerReceiver(nackReceiver,
+                    new IntentFilter(Constants.INTENT_APP_RECEIVE_NACK));
+            PebbleKit.registerPebbleConnectedReceiver(registeredContext, connectionReceiver);
+            PebbleKit.registerPebbleDisconnectedReceiver(registeredContext, connectionReceiver);
+            registeredContext.registerReceiver(connectionReceiver,
+                    new IntentFilter(Pebble.ACTION_RETRY));
+        }
+        // PebbleKit filters data logs by app UUID, so each app needs a
+        // receiver of its own.
+        PebbleKit.registerDataLogReceiver(registeredContext, p.getDataLog());
+    }
+
+    public synchronized void unregister(Pebble p) {
+        if (!registered.remove(p)) {
+            return;
+        }
+        for (int i = 0; i < MAX_SLOTS; ++i) {
+            if (slots[i] == p) {
+                slots[i] = null;
+            }
+        }
+        byUuid.remove(p.getPebbleAppUUID());
+        if (registeredContext != null) {
+            registeredContext.unregisterReceiver(p.getDataLog());
+        }
+
+        if (registered.isEmpty() && registeredContext != null) {
+            registeredContext.unregisterReceiver(dataReceiver);
+            registeredContext.unregisterReceiver(ackReceiver);
+            registeredContext.unregisterReceiver(nackReceiver);
+            registeredContext.unregisterReceiver(connectionReceiver);
+            registeredContext = null;
+        }
+    }
+
+    private synchronized Pebble[] snapshot() {
+        return registered.toArray(new Pebble[registered.size()]);
+    }
+
+    void pebbleConnected(Context ctx) {
+        for (Pebble p : snapshot()) {
+            p.pebbleConnected(ctx);
+        }
+    }
+
+    void pebbleDisconnected(Context ctx) {
+        for (Pebble p : snapshot()) {
+            p.pebbleDisconnected(ctx);
+        }
+    }
+
+    void retry(Context ctx) {
+        for (Pebble p : snapshot()) {
+            p.idle(ctx);
+        }
+    }
+}
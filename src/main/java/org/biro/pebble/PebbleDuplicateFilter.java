@@ -0,0 +1,61 @@
+package org.biro.pebble;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Remembers the last few inbound packets so a redelivery, which is what
+ * PebbleKit does when our ack gets lost, can be acked and dropped.  A
+ * packet is identified by PebbleKit's transaction id, which wraps at
+ * 256, together with the KEY_TRANSACTION_ID the watch put in it.
+ */
+class PebbleDuplicateFilter {
+    private final long[] ring;
+    private int next = 0;
+    private int count = 0;
+
+    PebbleDuplicateFilter(int size) {
+        ring = new long[size];
+    }
+
+    // Returns true if this packet was seen recently, otherwise
+    // remembers it.
+    synchronized boolean isDuplicate(int ptid, int tid) {
+        long id = ((long) ptid << 32) | (tid & 0xffffffffL);
+        for (int i = 0; i < count; ++i) {
+            if (ring[i] == id) {
+                return true;
+            }
+        }
+        ring[next] = id;
+        next = (next + 1) % ring.length;
+        if (count < ring.length) {
+            count++;
+        }
+        return false;
+    }
+
+    synchronized void clear() {
+        next = 0;
+        count = 0;
+    }
+}
@@ -0,0 +1,108 @@
+package org.biro.pebble;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Glyph advance widths and line height for a watch font, so text can be
+ * laid out on the phone.  The Gothic system fonts are built in.  Their
+ * tables are scaled from one 18 point table, so they aren't exact, and
+ * they err on the small side: widths are rounded down and taken a tenth
+ * narrower, and lines are taken as only the point size tall.  Too much
+ * text then costs a few bytes the watch clips, where too little would
+ * cut off text that fits.  An app that needs exact layout, or uses its
+ * own fonts, registers its own metrics under the font's name.
+ */
+public class PebbleFontMetrics {
+
+    private static final int FIRST = 0x20;
+
+    // Gothic 18 advance widths for ' ' through '~'.
+    private static final int[] GOTHIC_18 = {
+            4, 3, 5, 9, 8, 11, 9, 3, 4, 4, 6, 8, 3, 5, 3, 5,    // ' ' - '/'
+            8, 8, 8, 8, 8, 8, 8, 8, 8, 8,                      // '0' - '9'
+            3, 3, 8, 8, 8, 7, 12,                              // ':' - '@'
+            9, 8, 8, 9, 7, 7, 9, 9, 3, 6, 8, 7, 11,            // 'A' - 'M'
+            9, 10, 8, 10, 8, 8, 8, 9, 9, 13, 8, 8, 8,          // 'N' - 'Z'
+            4, 5, 4, 7, 7, 4,                                  // '[' - '`'
+            7, 7, 6, 7, 7, 4, 7, 7, 3, 3, 6, 3, 11,            // 'a' - 'm'
+            7, 7, 7, 7, 5, 6, 4, 7, 6, 10, 6, 6, 6,            // 'n' - 'z'
+            4, 3, 4, 8                                         // '{' - '~'
+    };
+
+    private static final Map<String, PebbleFontMetrics> fonts = new HashMap<>();
+
+    static {
+        int[] sizes = {14, 18, 24, 28};
+        for (int size : sizes) {
+            PebbleFontMetrics m = gothic(size);
+            register("Raster Gothic " + size + "-point", m);
+            register("Raster Gothic " + size + "-point Boldface", m);
+        }
+    }
+
+    // Deliberately low, see above.  Bold is at least as wide as regular,
+    // so the regular widths do for it.
+    private static PebbleFontMetrics gothic(int size) {
+        int[] w = new int[GOTHIC_18.length];
+        for (int i = 0; i < w.length; ++i) {
+            w[i] = GOTHIC_18[i] * size * 9 / (18 * 10);
+        }
+        return new PebbleFontMetrics(size, w, 6 * size / 18);
+    }
+
+    public static synchronized void register(String font, PebbleFontMetrics metrics) {
+        fonts.put(font, metrics);
+    }
+
+    // null if we don't know the font.
+    public static synchronized PebbleFontMetrics get(String font) {
+        return fonts.get(font);
+    }
+
+    private final int lineHeight;
+    private final int[] widths;
+    private final int otherWidth;
+
+    // widths holds the advance of each glyph from ' ' on; anything past
+    // the end of it is otherWidth wide.
+    public PebbleFontMetrics(int lineHeight, int[] widths, int otherWidth) {
+        this.lineHeight = lineHeight;
+        this.widths = widths.clone();
+        this.otherWidth = otherWidth;
+    }
+
+    public int getLineHeight() {
+        return lineHeight;
+    }
+
+    public int width(int codePoint) {
+        int i = codePoint - FIRST;
+        if (i >= 0 && i < widths.length) {
+            return widths[i];
+        }
+        return codePoint < FIRST ? 0 : otherWidth;
+    }
+}
@@ -0,0 +1,145 @@
+package org.biro.pebble;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Result of Pebble.sendAsync().  get() returns the watch's return value,
+ * or throws an ExecutionException wrapping a PebbleException if the
+ * watch returned an error, the packet was NACKed or the queue rejected
+ * it.  Responses are delivered on the main thread, so don't block it
+ * in get().
+ */
+public class PebbleFuture implements Future<Integer> {
+    public interface Listener {
+        void done(PebbleFuture f);
+    }
+
+    private boolean done = false;
+    private boolean cancelled = false;
+    private int status;
+    private int errorCode;
+    private int returnValue;
+    private Listener listener;
+
+    public synchronized void setListener(Listener l) {
+        listener = l;
+        if (done) {
+            l.done(this);
+        }
+    }
+
+    void complete(PebbleMessage msg) {
+        finish(msg.status, msg.errorCode, msg.returnValue);
+    }
+
+    void fail(int error) {
+        finish(Pebble.STATUS_ERR, error, 0);
+    }
+
+    private void finish(int status, int errorCode, int returnValue) {
+        Listener l;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            this.status = status;
+            this.errorCode = errorCode;
+            this.returnValue = returnValue;
+            done = true;
+            notifyAll();
+            l = listener;
+        }
+        if (l != null) {
+            l.done(this);
+        }
+    }
+
+    public synchronized boolean isSuccess() {
+        return done && !cancelled && status == Pebble.STATUS_OK;
+    }
+
+    public synchronized int getErrorCode() {
+        return errorCode;
+    }
+
+    @Override
+    public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+        // Only stops us reporting the result.  The packet may already
+        // be on its way.
+        if (done) {
+            return false;
+        }
+        cancelled = true;
+        done = true;
+        notifyAll();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    private Integer result() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (status != Pebble.STATUS_OK) {
+            throw new ExecutionException(new PebbleException("Error " + errorCode));
+        }
+        return returnValue;
+    }
+
+    @Override
+    public synchronized Integer get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return result();
+    }
+
+    @Override
+    public synchronized Integer get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long end = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            long left = end - System.nanoTime();
+            if (left <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return result();
+    }
+}
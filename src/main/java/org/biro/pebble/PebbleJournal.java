@@ -0,0 +1,320 @@
+package org.biro.pebble;
+
+import android.util.Log;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+import com.getpebble.android.kit.util.PebbleTuple;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Holds sendAsync() packets while the watch is disconnected.  Only the
+ * newest packet for each queue key is kept.  On reconnect the packets
+ * for the same window, layer and method are merged, so the watch gets
+ * a few packets with the final values instead of every step in between.
+ * <p/>
+ * With a file set, the journal is rewritten after each change, but only
+ * packets that don't name a window or layer handle come back in the next
+ * process.  Handles only make sense to the watch app that handed them
+ * out, so those packets are dropped when it restarts and are never
+ * reloaded.  Window and layer updates therefore don't outlive the
+ * process; they come back when the app recreates its windows.
+ */
+class PebbleJournal {
+    private static final String TAG = "PebbleJournal: ";
+
+    private static final int MAGIC = 0x504a4e31; // "PJN1"
+
+    // Leave room for the transaction id in the watch's inbox.
+    private static final int MAX_BATCH_BYTES = 120;
+
+    private final int capacity;
+    private final List<PebbleSendQueue.Entry> entries = new ArrayList<>();
+    private final Map<Long, PebbleSendQueue.Entry> byKey = new HashMap<>();
+
+    private File file = null;
+    private boolean savePending = false;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+
+    private final Runnable save = new Runnable() {
+        @Override
+        public void run() {
+            File f;
+            byte[] b;
+            synchronized (PebbleJournal.this) {
+                savePending = false;
+                f = file;
+                b = f == null ? null : encode();
+            }
+            if (f != null) {
+                write(f, b);
+            }
+        }
+    };
+
+    PebbleJournal(int capacity) {
+        this.capacity = capacity;
+    }
+
+    // Keeps the journal in f from now on, starting with what's already there.
+    synchronized void setFile(File f) {
+        file = f;
+        if (f == null) {
+            return;
+        }
+        if (f.exists()) {
+            read(f);
+        }
+        scheduleSave();
+    }
+
+    synchronized boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    // Takes out the packets that address the watch by handle.
+    synchronized List<PebbleSendQueue.Entry> removeHandles() {
+        List<PebbleSendQueue.Entry> out = new ArrayList<>();
+        Iterator<PebbleSendQueue.Entry> it = entries.iterator();
+        while (it.hasNext()) {
+            PebbleSendQueue.Entry e = it.next();
+            if (e.data != null && Pebble.carriesHandles(e.data)) {
+                it.remove();
+                if (e.key != 0 && byKey.get(e.key) == e) {
+                    byKey.remove(e.key);
+                }
+                out.add(e);
+            }
+        }
+        if (!out.isEmpty()) {
+            scheduleSave();
+        }
+        return out;
+    }
+
+    // Returns false if the journal is full.
+    synchronized boolean record(long key, PebbleDictionary data, PebbleFuture f) {
+        PebbleSendQueue.Entry e = new PebbleSendQueue.Entry(key, data);
+        e.futures.add(f);
+        return record(e);
+    }
+
+    synchronized boolean record(PebbleSendQueue.Entry e) {
+        PebbleSendQueue.Entry old = e.key == 0 ? null : byKey.get(e.key);
+        if (old != null) {
+            // Superseded, so whoever waited on it gets the new result.
+            entries.remove(old);
+            e.futures.addAll(0, old.futures);
+        } else if (entries.size() >= capacity) {
+            return false;
+        }
+        entries.add(e);
+        if (e.key != 0) {
+            byKey.put(e.key, e);
+        }
+        scheduleSave();
+        return true;
+    }
+
+    // Empties the journal, returning its packets merged into as few as
+    // will fit.  Unkeyed packets are never merged.
+    synchronized List<PebbleSendQueue.Entry> drain() {
+        List<PebbleSendQueue.Entry> out = new ArrayList<>();
+        Map<Long, PebbleSendQueue.Entry> batches = new HashMap<>();
+        for (PebbleSendQueue.Entry e : entries) {
+            if (e.key == 0 || e.data == null) {
+                out.add(e);
+                continue;
+            }
+            Long method = e.data.getUnsignedIntegerAsLong(Pebble.KEY_METHOD_ID);
+            long target = ((e.key >>> 16) << 16) | (method == null ? 0 : method);
+            PebbleSendQueue.Entry batch = batches.get(target);
+            if (batch != null && size(batch.data) + size(e.data) <= MAX_BATCH_BYTES) {
+                for (PebbleTuple t : e.data) {
+                    put(batch.data, t);
+                }
+                batch.futures.addAll(e.futures);
+                continue;
+            }
+            batch = new PebbleSendQueue.Entry(0, copy(e.data));
+            batch.futures.addAll(e.futures);
+            batches.put(target, batch);
+            out.add(batch);
+        }
+        entries.clear();
+        byKey.clear();
+        scheduleSave();
+        return out;
+    }
+
+    private void scheduleSave() {
+        if (file != null && !savePending) {
+            savePending = true;
+            writer.execute(save);
+        }
+    }
+
+    private static int size(PebbleDictionary pd) {
+        int n = 1;
+        for (PebbleTuple t : pd) {
+            n += 7 + t.length;
+        }
+        return n;
+    }
+
+    private static PebbleDictionary copy(PebbleDictionary pd) {
+        PebbleDictionary c = new PebbleDictionary();
+        for (PebbleTuple t : pd) {
+            put(c, t);
+        }
+        return c;
+    }
+
+    private static void put(PebbleDictionary pd, PebbleTuple t) {
+        switch (t.type) {
+            case UINT:
+            case INT: {
+                long v = ((Number) t.value).longValue();
+                boolean signed = t.type == PebbleTuple.TupleType.INT;
+                if (t.width.value == 1) {
+                    if (signed) {
+                        pd.addInt8(t.key, (byte) v);
+                    } else {
+                        pd.addUint8(t.key, (byte) v);
+                    }
+                } else if (t.width.value == 2) {
+                    if (signed) {
+                        pd.addInt16(t.key, (short) v);
+                    } else {
+                        pd.addUint16(t.key, (short) v);
+                    }
+                } else {
+                    if (signed) {
+                        pd.addInt32(t.key, (int) v);
+                    } else {
+                        pd.addUint32(t.key, (int) v);
+                    }
+                }
+                break;
+            }
+            case STRING:
+                pd.addString(t.key, (String) t.value);
+                break;
+            case BYTES:
+                pd.addBytes(t.key, (byte[]) t.value);
+                break;
+        }
+    }
+
+    private byte[] encode() {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(b);
+        try {
+            out.writeInt(MAGIC);
+            for (PebbleSendQueue.Entry e : entries) {
+                out.writeLong(e.key);
+                PebbleTrace.writeDictionary(out, e.data);
+            }
+            out.flush();
+        } catch (IOException e) {
+            // Can't happen writing to memory.
+            Log.e(TAG, "Encoding journal failed: " + e.getMessage());
+        }
+        return b.toByteArray();
+    }
+
+    private static void write(File f, byte[] b) {
+        File tmp = new File(f.getPath() + ".tmp");
+        try {
+            File dir = f.getParentFile();
+            if (dir != null) {
+                dir.mkdirs();
+            }
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(b);
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(f)) {
+                Log.e(TAG, "Replacing journal " + f + " failed");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Writing journal failed: " + e.getMessage());
+        }
+    }
+
+    // Appends whatever f holds.  Futures from the process that wrote it
+    // are gone, so restored packets get fresh ones nobody waits on.
+    private void read(File f) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            if (in.readInt() != MAGIC) {
+                Log.e(TAG, "Not a journal: " + f);
+                return;
+            }
+            while (true) {
+                long key;
+                try {
+                    key = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                PebbleDictionary pd = PebbleTrace.readDictionary(in);
+                // Handles from an earlier process mean nothing now.
+                if (pd != null && !Pebble.carriesHandles(pd)) {
+                    record(key, pd, new PebbleFuture());
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Reading journal failed: " + e.getMessage());
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing to do.
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package org.biro.pebble;
+
+import java.util.List;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Times button presses on the watch until what they change shows up
+ * there.  A click opens a span.  The first display update sent after it
+ * closes the span: send time, PebbleKit ack, then the watch's response.
+ * The span is dropped if the next click comes first.  Spans live in a
+ * fixed ring that is reused, so tracing allocates nothing while running.
+ * <p/>
+ * This is an approximation.  A click doesn't say what it caused, so
+ * the first text, template, list row or canvas update after it is taken
+ * to be the answer, even if it came from something else, such as
+ * another window or a timer being put right.  It's good for the shape
+ * of the latency on a quiet screen, not for attributing single clicks.
+ */
+public class PebbleLatencyTracer {
+
+    public static class Span {
+        int button;
+        int tid;
+        long clickAt;
+        long sentAt;
+        long ackedAt;
+        long appliedAt;
+
+        public int getButton() {
+            return button;
+        }
+
+        // Click received until the update went out, in ms.
+        public long getQueueWait() {
+            return (sentAt - clickAt) / 1000000;
+        }
+
+        // Update sent until PebbleKit acked it, in ms.  Zero if the ack
+        // never arrived.
+        public long getLinkTime() {
+            return ackedAt == 0 ? 0 : (ackedAt - sentAt) / 1000000;
+        }
+
+        // From the ack, or the send if there was no ack, until the watch
+        // said it was applied, in ms.
+        public long getWatchTime() {
+            return (appliedAt - (ackedAt == 0 ? sentAt : ackedAt)) / 1000000;
+        }
+
+        public long getTotal() {
+            return (appliedAt - clickAt) / 1000000;
+        }
+
+        void copy(Span s) {
+            button = s.button;
+            tid = s.tid;
+            clickAt = s.clickAt;
+            sentAt = s.sentAt;
+            ackedAt = s.ackedAt;
+            appliedAt = s.appliedAt;
+        }
+
+        @Override
+        public String toString() {
+            return "button " + button + ": " + getTotal() + "ms (queue " + getQueueWait()
+                    + ", link " + getLinkTime() + ", watch " + getWatchTime() + ")";
+        }
+    }
+
+    private final Span[] ring;
+    private int next = 0;
+    private int completed = 0;
+
+    // The click waiting for an update, and the span whose update is out.
+    private Span open = null;
+    private Span sent = null;
+
+    PebbleLatencyTracer(int size) {
+        ring = new Span[size];
+        for (int i = 0; i < size; ++i) {
+            ring[i] = new Span();
+        }
+    }
+
+    synchronized void clicked(int button) {
+        Span s = ring[next];
+        if (s == sent) {
+            sent = null;
+        }
+        s.button = button;
+        s.tid = 0;
+        s.clickAt = System.nanoTime();
+        s.sentAt = 0;
+        s.ackedAt = 0;
+        s.appliedAt = 0;
+        open = s;
+        next = (next + 1) % ring.length;
+    }
+
+    synchronized void textSent(int tid) {
+        if (open == null) {
+            return;
+        }
+        open.tid = tid;
+        open.sentAt = System.nanoTime();
+        sent = open;
+        open = null;
+    }
+
+    // PebbleKit hands back only the low byte of the transaction id.
+    synchronized void acked(int tid) {
+        if (sent != null && (sent.tid & 0xff) == (tid & 0xff) && sent.ackedAt == 0) {
+            sent.ackedAt = System.nanoTime();
+        }
+    }
+
+    synchronized void applied(int tid) {
+        if (sent != null && sent.tid == tid) {
+            sent.appliedAt = System.nanoTime();
+            sent = null;
+            completed++;
+        }
+    }
+
+    // Number of spans completed since tracing started.
+    public synchronized int getCompleted() {
+        return completed;
+    }
+
+    // Adds copies of the completed spans still in the ring to out,
+    // oldest first.
+    public synchronized void getSpans(List<Span> out) {
+        for (int i = 0; i < ring.length; ++i) {
+            Span s = ring[(next + i) % ring.length];
+            if (s.appliedAt != 0) {
+                Span c = new Span();
+                c.copy(s);
+                out.add(c);
+            }
+        }
+    }
+}
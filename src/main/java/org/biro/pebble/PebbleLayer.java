@@ -29,6 +29,14 @@ import android.content.Context;
  */
 public interface  PebbleLayer {
     abstract boolean changed();
+    // Sends what changed, and returns true if it's waiting on the watch.
+    // If the watch didn't take it, the changes stay pending and the
+    // window's handleError() decides what happens next; a NACK is left
+    // for Pebble.idle() to retry.
     boolean update(Context ctx, PebbleWindow pw);
     void clearHandle();
+    // The watch's handle for this layer, -1 if it has none, and the
+    // key requests put it under.
+    int getHandle();
+    int getHandleKey();
 }
@@ -0,0 +1,319 @@
+package org.biro.pebble;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * A scrolling list backed by an Adapter on the phone.  The watch only
+ * holds a fixed ring of row slots: the visible rows plus a prefetch
+ * margin on each side.  Position p always lives in slot p % slots, so
+ * scrolling recycles the slots that fell out of range, and rows are
+ * sent visible first, then ahead of the scroll direction.
+ */
+public class PebbleListLayer implements PebbleLayer {
+    private static final String TAG = "PebbleListLayer: ";
+
+    // Keep each batch of rows small enough to fit in one AppMessage.
+    private static final int MAX_ROW_BYTES = 96;
+    // A row and its slot, position and length have to fit by themselves.
+    private static final int MAX_ROW_TEXT = MAX_ROW_BYTES - 4;
+    // Positions go to the watch as u16.
+    static final int MAX_COUNT = 0x10000;
+
+    public interface Adapter {
+        int getCount();
+        String getRow(int position);
+    }
+
+    private final Adapter adapter;
+    private final int visible;
+    private final int prefetch;
+    private final int slots;
+
+    private int llh = -1;
+
+    // Which position each slot on the watch holds, -1 if none.
+    private final int[] slotPosition;
+    // Bumped whenever a slot's row goes stale, so an apply that was
+    // already on its way with the old row doesn't mark it as there.
+    private final int[] slotGeneration;
+
+    private int top = 0;
+    private int direction = 1;
+    private int count = 0;
+    private boolean top_changed = true;
+    private boolean count_changed = true;
+
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    private int id = 0;
+
+    public PebbleListLayer(Adapter adapter, int visible, int prefetch) {
+        this.adapter = adapter;
+        this.visible = visible;
+        this.prefetch = prefetch;
+        this.slots = visible + 2 * prefetch;
+        slotPosition = new int[slots];
+        slotGeneration = new int[slots];
+        Arrays.fill(slotPosition, -1);
+        count = adapterCount();
+    }
+
+    @Override
+    public int getHandle() {
+        return llh;
+    }
+
+    @Override
+    public int getHandleKey() {
+        return Pebble.KEY_LIST_LAYER_ID;
+    }
+
+    @Override
+    public void clearHandle() {
+        llh = -1;
+        Arrays.fill(slotPosition, -1);
+        top_changed = true;
+        count_changed = true;
+    }
+
+    public int getTop() {
+        return top;
+    }
+
+    public void setTop(int position) {
+        position = Math.max(0, Math.min(position, count - visible));
+        if (position == top) {
+            return;
+        }
+        direction = position > top ? 1 : -1;
+        top = position;
+        top_changed = true;
+    }
+
+    public void scroll(int rows) {
+        setTop(top + rows);
+    }
+
+    // Scrolls on UP/DOWN.  Returns true if the click was ours.
+    public boolean handleClick(int button) {
+        switch (button) {
+            case Pebble.BUTTON_UP:
+                scroll(-1);
+                return true;
+            case Pebble.BUTTON_DOWN:
+                scroll(1);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private int adapterCount() {
+        int n = adapter.getCount();
+        if (n > MAX_COUNT) {
+            Log.e(TAG, "Only the first " + MAX_COUNT + " of " + n + " rows can be shown");
+            n = MAX_COUNT;
+        }
+        return n;
+    }
+
+    public void notifyDataSetChanged() {
+        count = adapterCount();
+        count_changed = true;
+        Arrays.fill(slotPosition, -1);
+        for (int i = 0; i < slots; ++i) {
+            slotGeneration[i]++;
+        }
+        setTop(top);
+    }
+
+    public void notifyRowChanged(int position) {
+        int slot = position % slots;
+        slotGeneration[slot]++;
+        if (slotPosition[slot] == position) {
+            slotPosition[slot] = -1;
+        }
+    }
+
+    // The n'th position we want on the watch, in the order they
+    // should be sent, or -1 when there are no more.
+    private int wanted(int n) {
+        int first = Math.max(0, top - prefetch);
+        int last = Math.min(count, top + visible + prefetch);
+        if (n < visible) {
+            int p = top + n;
+            return p < count ? p : -1;
+        }
+        n -= visible;
+        int ahead = direction > 0 ? last - (top + visible) : top - first;
+        if (n < ahead) {
+            return direction > 0 ? top + visible + n : top - 1 - n;
+        }
+        n -= ahead;
+        int behind = direction > 0 ? top - first : last - (top + visible);
+        if (n < behind) {
+            return direction > 0 ? top - 1 - n : top + visible + n;
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean changed() {
+        if (top_changed || count_changed) {
+            return true;
+        }
+        int p;
+        for (int n = 0; (p = wanted(n)) >= 0; ++n) {
+            if (slotPosition[p % slots] != p) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void connect(final PebbleWindow pw, Context ctx) {
+        PebbleDictionary pd = new PebbleDictionary();
+        if (id != 0) {
+            pd.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_GET_LIST_LAYER_BY_ID);
+            pd.addUint32(Pebble.KEY_ID, id);
+        } else {
+            pd.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_NEW_LIST_LAYER);
+        }
+        pd.addUint32(Pebble.KEY_LIST_SLOTS, slots);
+        pw.send(ctx, pd, new Pebble.PebbleMessageCallback() {
+            @Override
+            public void processMessage(Context ctx, PebbleMessage msg, PebbleDictionary req) {
+                if (msg.status == Pebble.STATUS_OK) {
+                    llh = msg.returnValue;
+                    pw.updateStatus(ctx);
+                } else {
+                    pw.handleError(ctx, msg);
+                }
+            }
+        });
+    }
+
+    // returns true when we started something and
+    // have to wait.
+    @Override
+    public boolean update(Context ctx, final PebbleWindow pw) {
+        if (llh < 0) {
+            connect(pw, ctx);
+            return true;
+        }
+
+        if (!changed()) {
+            return false;
+        }
+
+        PebbleDictionary pd = new PebbleDictionary();
+        pd.addUint32(Pebble.KEY_LIST_LAYER_ID, llh);
+        pd.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_APPLY_ATTRIBUTES);
+        final boolean sentTop = top_changed;
+        final boolean sentCount = count_changed;
+        if (top_changed) {
+            pd.addUint32(Pebble.KEY_ATTRIBUTE_LIST_TOP, top);
+            top_changed = false;
+        }
+        if (count_changed) {
+            pd.addUint32(Pebble.KEY_ATTRIBUTE_LIST_COUNT, count);
+            count_changed = false;
+        }
+
+        ByteArrayOutputStream rows = new ByteArrayOutputStream();
+        final int[] sent = new int[slots];
+        final int[] generations = new int[slots];
+        int nsent = 0;
+        int p;
+        for (int n = 0; (p = wanted(n)) >= 0; ++n) {
+            int slot = p % slots;
+            if (slotPosition[slot] == p) {
+                continue;
+            }
+            byte[] b;
+            try {
+                b = adapter.getRow(p).getBytes("UTF-8");
+            } catch (java.io.UnsupportedEncodingException e) {
+                Log.d(TAG, "UnsupportedIOEncodingException: " + e.getMessage());
+                b = new byte[0];
+            }
+            int len = b.length;
+            if (len > MAX_ROW_TEXT) {
+                // Cut it short, but not in the middle of a character.
+                len = MAX_ROW_TEXT;
+                while (len > 0 && (b[len] & 0xc0) == 0x80) {
+                    len--;
+                }
+            }
+            if (rows.size() > 0 && rows.size() + 4 + len > MAX_ROW_BYTES) {
+                break; // the rest goes in the next packet.
+            }
+            rows.write(slot);
+            rows.write(p);
+            rows.write(p >> 8);
+            rows.write(len);
+            rows.write(b, 0, len);
+            generations[nsent] = slotGeneration[slot];
+            sent[nsent++] = p;
+        }
+        if (rows.size() > 0) {
+            pd.addBytes(Pebble.KEY_ATTRIBUTE_LIST_ROWS, rows.toByteArray());
+        }
+
+        final int total = nsent;
+        pw.send(ctx, pd, new Pebble.PebbleMessageCallback() {
+            @Override
+            public void processMessage(Context ctx, PebbleMessage msg, PebbleDictionary req) {
+                if (msg.status != Pebble.STATUS_OK) {
+                    top_changed |= sentTop;
+                    count_changed |= sentCount;
+                    pw.handleError(ctx, msg);
+                    return;
+                }
+                for (int i = 0; i < total; ++i) {
+                    int slot = sent[i] % slots;
+                    if (slotGeneration[slot] == generations[i]) {
+                        slotPosition[slot] = sent[i];
+                    }
+                }
+                pw.updateStatus(ctx);
+            }
+        });
+
+        return true;
+    }
+}
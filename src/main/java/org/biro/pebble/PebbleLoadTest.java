@@ -0,0 +1,173 @@
+package org.biro.pebble;
+
+import android.content.Context;
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Drives PebbleWindow/PebbleTextLayer updates against a
+ * PebbleSimulatedWatch and reports how long each setText() took to show
+ * up on the watch.  Texts that never arrive are counted as lost.
+ */
+public class PebbleLoadTest {
+    // How long to wait for stragglers after the last update.
+    private static final int DRAIN_TIME = 15000;
+    private static final int DRAIN_POLL = 100;
+
+    public interface Listener {
+        void finished(Report r);
+    }
+
+    public static class Report {
+        public int updates;
+        public int applied;
+        public long p50;
+        public long p90;
+        public long p99;
+        public long max;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d updates, %d applied, latency ms p50=%d p90=%d p99=%d max=%d",
+                    updates, applied, p50, p90, p99, max);
+        }
+    }
+
+    private final Pebble pebble;
+    private final PebbleSimulatedWatch watch;
+    private final Handler handler = new Handler();
+
+    private final List<PebbleWindow> windows = new ArrayList<>();
+    private final List<PebbleTextLayer> layers = new ArrayList<>();
+    private final Map<String, Long> pending = new HashMap<>();
+    private long[] latencies = new long[256];
+    private int applied = 0;
+    private int updates = 0;
+
+    public PebbleLoadTest(Pebble pebble, PebbleSimulatedWatch watch) {
+        this.pebble = pebble;
+        this.watch = watch;
+    }
+
+    // Updates one layer every intervalMs, round robin, for durationMs.
+    public void run(final Context ctx, int windowCount, int layersPerWindow,
+                    final int intervalMs, final int durationMs, final Listener listener) {
+        final Pebble.PebbleTransport saved = pebble.getTransport();
+        pebble.setTransport(watch);
+        watch.setApplyListener(new PebbleSimulatedWatch.ApplyListener() {
+            @Override
+            public void applied(int layer, String text) {
+                Long t = pending.remove(text);
+                if (t != null) {
+                    record(System.currentTimeMillis() - t);
+                }
+            }
+        });
+
+        for (int w = 0; w < windowCount; ++w) {
+            PebbleWindow pw = new PebbleWindow();
+            pw.setParent(pebble);
+            for (int l = 0; l < layersPerWindow; ++l) {
+                PebbleTextLayer tl = new PebbleTextLayer();
+                pw.addLayer(tl);
+                layers.add(tl);
+            }
+            windows.add(pw);
+            // Windows only get built on the watch once they're pushed.
+            pw.push(ctx);
+        }
+
+        final long end = System.currentTimeMillis() + durationMs;
+        // Waits for stragglers, but no longer than it has to.
+        final Runnable drain = new Runnable() {
+            private final long deadline = end + DRAIN_TIME;
+
+            @Override
+            public void run() {
+                if (!pending.isEmpty() && System.currentTimeMillis() < deadline) {
+                    handler.postDelayed(this, DRAIN_POLL);
+                    return;
+                }
+                for (PebbleWindow pw : windows) {
+                    pebble.removeChild(pw);
+                }
+                pebble.setTransport(saved);
+                watch.setApplyListener(null);
+                listener.finished(report());
+            }
+        };
+        if (layers.isEmpty()) {
+            // Nothing to update.
+            handler.post(drain);
+            return;
+        }
+        final int perWindow = layers.size() / windows.size();
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (System.currentTimeMillis() >= end) {
+                    handler.post(drain);
+                    return;
+                }
+                int i = updates % layers.size();
+                String text = "u" + updates;
+                pending.put(text, System.currentTimeMillis());
+                layers.get(i).setText(text);
+                windows.get(i / perWindow).update(ctx);
+                updates++;
+                handler.postDelayed(this, intervalMs);
+            }
+        });
+    }
+
+    private void record(long ms) {
+        if (applied == latencies.length) {
+            latencies = Arrays.copyOf(latencies, applied * 2);
+        }
+        latencies[applied++] = ms;
+    }
+
+    private Report report() {
+        Report r = new Report();
+        r.updates = updates;
+        r.applied = applied;
+        if (applied > 0) {
+            long[] sorted = Arrays.copyOf(latencies, applied);
+            Arrays.sort(sorted);
+            r.p50 = sorted[(applied - 1) * 50 / 100];
+            r.p90 = sorted[(applied - 1) * 90 / 100];
+            r.p99 = sorted[(applied - 1) * 99 / 100];
+            r.max = sorted[applied - 1];
+        }
+        return r;
+    }
+}
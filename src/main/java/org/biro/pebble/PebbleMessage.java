@@ -0,0 +1,104 @@
+package org.biro.pebble;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * The fields of an incoming packet we care about, decoded once into
+ * primitives.  Instances come from a small pool and go back to it as
+ * soon as the callbacks return, so callbacks must not hold on to one.
+ */
+public class PebbleMessage {
+    private static final int POOL_SIZE = 8;
+    private static final PebbleMessage[] pool = new PebbleMessage[POOL_SIZE];
+    private static int pooled = 0;
+
+    public boolean hasStatus;
+    public int status;
+    public boolean hasTransactionId;
+    public int transactionId;
+    public boolean hasReturnValue;
+    public int returnValue;
+    public boolean hasErrorCode;
+    public int errorCode;
+    public boolean hasClick;
+    public int click;
+
+    static PebbleMessage obtain() {
+        synchronized (pool) {
+            if (pooled > 0) {
+                PebbleMessage m = pool[--pooled];
+                pool[pooled] = null;
+                return m;
+            }
+        }
+        return new PebbleMessage();
+    }
+
+    void recycle() {
+        clear();
+        synchronized (pool) {
+            if (pooled < POOL_SIZE) {
+                pool[pooled++] = this;
+            }
+        }
+    }
+
+    void clear() {
+        hasStatus = false;
+        status = 0;
+        hasTransactionId = false;
+        transactionId = 0;
+        hasReturnValue = false;
+        returnValue = 0;
+        hasErrorCode = false;
+        errorCode = 0;
+        hasClick = false;
+        click = 0;
+    }
+
+    void decode(PebbleDictionary pd) {
+        Long v;
+        if ((v = pd.getUnsignedIntegerAsLong(Pebble.KEY_STATUS)) != null) {
+            hasStatus = true;
+            status = v.intValue();
+        }
+        if ((v = pd.getUnsignedIntegerAsLong(Pebble.KEY_TRANSACTION_ID)) != null) {
+            hasTransactionId = true;
+            transactionId = v.intValue();
+        }
+        if ((v = pd.getUnsignedIntegerAsLong(Pebble.KEY_RETURN_VALUE)) != null) {
+            hasReturnValue = true;
+            returnValue = v.intValue();
+        }
+        if ((v = pd.getUnsignedIntegerAsLong(Pebble.KEY_ERROR_CODE)) != null) {
+            hasErrorCode = true;
+            errorCode = v.intValue();
+        }
+        if ((v = pd.getUnsignedIntegerAsLong(Pebble.KEY_CLICK)) != null) {
+            hasClick = true;
+            click = v.intValue();
+        }
+    }
+}
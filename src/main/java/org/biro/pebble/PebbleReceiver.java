@@ -9,21 +9,41 @@ import com.getpebble.android.kit.Constants;
 
 public class PebbleReceiver extends BroadcastReceiver {
     private static final String TAG = "PebbleReceiverß";
-    Pebble parent = null;
+    PebbleDispatcher parent = null;
+    Pebble pebble = null;
 
-    public PebbleReceiver(Pebble parent) {
+    public PebbleReceiver(PebbleDispatcher parent) {
         this.parent = parent;
     }
 
+    // For apps that register their own receiver for one Pebble.
+    public PebbleReceiver(Pebble pebble) {
+        this(PebbleDispatcher.getInstance());
+        this.pebble = pebble;
+    }
+
     @Override
     public void onReceive(Context context, Intent intent) {
         // TODO: This method is called when the BroadcastReceiver is receiving
         // an Intent broadcast.
         Log.d(TAG, intent.getAction());
-        if (intent.getAction() == Constants.INTENT_PEBBLE_CONNECTED) {
+        String action = intent.getAction();
+        if (pebble != null) {
+            if (Constants.INTENT_PEBBLE_CONNECTED.equals(action)) {
+                pebble.pebbleConnected(context);
+            } else if (Constants.INTENT_PEBBLE_DISCONNECTED.equals(action)) {
+                pebble.pebbleDisconnected(context);
+            } else if (Pebble.ACTION_RETRY.equals(action)) {
+                pebble.idle(context);
+            }
+            return;
+        }
+        if (Constants.INTENT_PEBBLE_CONNECTED.equals(action)) {
             parent.pebbleConnected(context);
-        } else if (intent.getAction() == Constants.INTENT_PEBBLE_DISCONNECTED) {
+        } else if (Constants.INTENT_PEBBLE_DISCONNECTED.equals(action)) {
             parent.pebbleDisconnected(context);
+        } else if (Pebble.ACTION_RETRY.equals(action)) {
+            parent.retry(context);
         }
     }
 }
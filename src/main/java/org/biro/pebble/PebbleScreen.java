@@ -0,0 +1,91 @@
+package org.biro.pebble;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * What a window should hold: its layers, bottom first, each under a key.
+ * Describe the screen from scratch whenever it changes and hand it to
+ * PebbleWindow.setScreen().  Layers whose key and class match the last
+ * screen are kept and rebound, so only what differs is sent; the rest
+ * are created, destroyed or restacked.
+ */
+public class PebbleScreen {
+
+    // Makes a layer for a key that's new, and sets it up to match the
+    // screen, whether it's new or kept from last time.
+    public interface Binder<L extends PebbleLayer> {
+        L create();
+        void bind(L layer);
+    }
+
+    static class Node<L extends PebbleLayer> {
+        final String key;
+        final Class<L> type;
+        final Binder<L> binder;
+
+        Node(String key, Class<L> type, Binder<L> binder) {
+            this.key = key;
+            this.type = type;
+            this.binder = binder;
+        }
+
+        // Returns old bound to this node if it's the right kind of
+        // layer, otherwise a new one.
+        PebbleLayer bind(PebbleLayer old) {
+            L layer = type.isInstance(old) ? type.cast(old) : binder.create();
+            binder.bind(layer);
+            return layer;
+        }
+    }
+
+    final List<Node<?>> nodes = new ArrayList<>();
+    private final Set<String> keys = new HashSet<>();
+
+    public <L extends PebbleLayer> PebbleScreen add(String key, Class<L> type, Binder<L> binder) {
+        if (!keys.add(key)) {
+            throw new IllegalArgumentException("Duplicate layer key " + key);
+        }
+        nodes.add(new Node<>(key, type, binder));
+        return this;
+    }
+
+    // A plain text layer.
+    public PebbleScreen text(String key, final String text) {
+        return add(key, PebbleTextLayer.class, new Binder<PebbleTextLayer>() {
+            @Override
+            public PebbleTextLayer create() {
+                return new PebbleTextLayer();
+            }
+
+            @Override
+            public void bind(PebbleTextLayer layer) {
+                layer.setText(text);
+            }
+        });
+    }
+}
@@ -0,0 +1,141 @@
+package org.biro.pebble;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * The bounded outbound queue behind Pebble.sendAsync().  Packets queued
+ * with the same non zero key are coalesced: the newest dictionary
+ * replaces the queued one and every future waiting on the key completes
+ * with its result.
+ */
+class PebbleSendQueue {
+    static class Entry {
+        final long key;
+        PebbleDictionary data;
+        final List<PebbleFuture> futures = new ArrayList<>(1);
+
+        Entry(long key, PebbleDictionary data) {
+            this.key = key;
+            this.data = data;
+        }
+    }
+
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+    private final Map<Long, Entry> byKey = new HashMap<>();
+    private int capacity;
+    private int policy;
+
+    PebbleSendQueue(int policy, int capacity) {
+        this.policy = policy;
+        this.capacity = capacity;
+    }
+
+    synchronized void setPolicy(int policy, int capacity) {
+        this.policy = policy;
+        this.capacity = capacity;
+        notifyAll();
+    }
+
+    // Returns false if the packet was rejected.  canBlock is false on the
+    // thread that drains the queue, where blocking would never end.
+    synchronized boolean add(long key, PebbleDictionary data, PebbleFuture f, boolean canBlock)
+            throws InterruptedException {
+        if (policy == Pebble.QUEUE_COALESCE && key != 0) {
+            Entry e = byKey.get(key);
+            if (e != null) {
+                e.data = data;
+                e.futures.add(f);
+                return true;
+            }
+        }
+        while (queue.size() >= capacity) {
+            if (policy != Pebble.QUEUE_BLOCK || !canBlock) {
+                return false;
+            }
+            wait();
+        }
+        Entry e = new Entry(key, data);
+        e.futures.add(f);
+        queue.add(e);
+        if (key != 0) {
+            byKey.put(key, e);
+        }
+        return true;
+    }
+
+    // Queues packets that were already accepted elsewhere, ignoring
+    // the capacity.
+    synchronized void addAll(List<Entry> entries) {
+        for (Entry e : entries) {
+            queue.add(e);
+            if (e.key != 0) {
+                byKey.put(e.key, e);
+            }
+        }
+    }
+
+    // Takes out the packets that address the watch by handle, see
+    // Pebble.carriesHandles().
+    synchronized List<Entry> removeHandles() {
+        List<Entry> out = new ArrayList<>();
+        Iterator<Entry> it = queue.iterator();
+        while (it.hasNext()) {
+            Entry e = it.next();
+            if (e.data != null && Pebble.carriesHandles(e.data)) {
+                it.remove();
+                if (e.key != 0 && byKey.get(e.key) == e) {
+                    byKey.remove(e.key);
+                }
+                out.add(e);
+            }
+        }
+        if (!out.isEmpty()) {
+            notifyAll();
+        }
+        return out;
+    }
+
+    synchronized Entry poll() {
+        Entry e = queue.poll();
+        if (e != null) {
+            if (e.key != 0 && byKey.get(e.key) == e) {
+                byKey.remove(e.key);
+            }
+            notifyAll();
+        }
+        return e;
+    }
+
+    synchronized boolean isEmpty() {
+        return queue.isEmpty();
+    }
+}
@@ -0,0 +1,527 @@
+package org.biro.pebble;
+
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+import com.getpebble.android.kit.util.PebbleTuple;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * A fake watch app behind a simulated Bluetooth link.  Install it with
+ * Pebble.setTransport() and it answers the same calls the watch app
+ * does, after a configurable latency, and can drop, nack or duplicate
+ * packets, cap the link bandwidth and restart the watch app.
+ * <p/>
+ * Everything runs on the Handler the simulator was created on, so
+ * create it on the thread the Pebble receives on.
+ */
+public class PebbleSimulatedWatch implements Pebble.PebbleTransport {
+    private static final String TAG = "PebbleSimulatedWatch: ";
+
+    public static final int LATENCY_CONSTANT = 0;
+    public static final int LATENCY_UNIFORM = 1;
+    public static final int LATENCY_EXPONENTIAL = 2;
+
+    // AppMessage framing overhead per packet and per tuple.
+    private static final int PACKET_OVERHEAD = 8;
+    private static final int TUPLE_OVERHEAD = 7;
+
+    public interface ApplyListener {
+        void applied(int layer, String text);
+    }
+
+    private final Pebble pebble;
+    private final Handler handler = new Handler();
+    private final Random random;
+
+    private int latencyMin = 20;
+    private int latencySpread = 0;
+    private int latencyDistribution = LATENCY_CONSTANT;
+    private double lossRate = 0;
+    private double nackRate = 0;
+    private double duplicateRate = 0;
+    private int bytesPerSecond = 0; // 0 is unlimited.
+
+    private long linkFree = 0;
+    private int ptid = 0;
+    private int clicks = 0;
+    private int apiVersion = Pebble.API_VERSION_PACKED_TEXT;
+
+    // Watch side state.
+    private int nextHandle = Pebble.ROOT_WINDOW_HANDLE + 1;
+    private final SparseArray<String> layers = new SparseArray<>();
+    private final SparseArray<String> templates = new SparseArray<>();
+    private final SparseArray<String[]> fields = new SparseArray<>();
+    private final SparseArray<String> strings = new SparseArray<>();
+    private final SparseArray<Integer> windows = new SparseArray<>();
+    private final SparseArray<Integer> layerWindow = new SparseArray<>();
+    private int maxHandles = Integer.MAX_VALUE;
+    private ApplyListener listener;
+
+    private int sent = 0;
+    private int lost = 0;
+    private int nacked = 0;
+    private int duplicated = 0;
+
+    public PebbleSimulatedWatch(Pebble pebble, long seed) {
+        this.pebble = pebble;
+        this.random = new Random(seed);
+        windows.put(Pebble.ROOT_WINDOW_HANDLE, Pebble.ROOT_WINDOW_ID);
+    }
+
+    public void setLatency(int distribution, int minMs, int spreadMs) {
+        latencyDistribution = distribution;
+        latencyMin = minMs;
+        latencySpread = spreadMs;
+    }
+
+    public void setLossRate(double rate) {
+        lossRate = rate;
+    }
+
+    public void setNackRate(double rate) {
+        nackRate = rate;
+    }
+
+    public void setDuplicateRate(double rate) {
+        duplicateRate = rate;
+    }
+
+    public void setBandwidth(int bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public void setApplyListener(ApplyListener listener) {
+        this.listener = listener;
+    }
+
+    public int getSent() {
+        return sent;
+    }
+
+    public int getLost() {
+        return lost;
+    }
+
+    public int getNacked() {
+        return nacked;
+    }
+
+    public int getDuplicated() {
+        return duplicated;
+    }
+
+    private long latency() {
+        switch (latencyDistribution) {
+            case LATENCY_UNIFORM:
+                return latencyMin + (long) (random.nextDouble() * latencySpread);
+            case LATENCY_EXPONENTIAL:
+                return latencyMin + (long) (-Math.log(1 - random.nextDouble()) * latencySpread);
+            default:
+                return latencyMin;
+        }
+    }
+
+    static int packetSize(PebbleDictionary pd) {
+        int size = PACKET_OVERHEAD;
+        for (PebbleTuple t : pd) {
+            size += TUPLE_OVERHEAD;
+            switch (t.type) {
+                case BYTES:
+                    size += ((byte[]) t.value).length;
+                    break;
+                case STRING:
+                    size += ((String) t.value).length() + 1;
+                    break;
+                default:
+                    size += t.width.value;
+                    break;
+            }
+        }
+        return size;
+    }
+
+    // Returns the delay until a packet of this size has crossed the link.
+    private long transmit(int bytes) {
+        long now = System.currentTimeMillis();
+        long start = Math.max(now, linkFree);
+        if (bytesPerSecond > 0) {
+            linkFree = start + bytes * 1000L / bytesPerSecond;
+        } else {
+            linkFree = start;
+        }
+        return linkFree - now + latency();
+    }
+
+    @Override
+    public void sendData(final Context ctx, UUID uuid, final PebbleDictionary data, final int tid) {
+        sent++;
+        if (random.nextDouble() < lossRate) {
+            lost++;
+            return;
+        }
+        long delay = transmit(packetSize(data));
+        if (random.nextDouble() < nackRate) {
+            nacked++;
+            handler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    pebble.receiveNack(ctx, tid);
+                }
+            }, delay);
+            return;
+        }
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                pebble.receiveAck(ctx, tid);
+                reply(ctx, process(data));
+            }
+        }, delay);
+    }
+
+    @Override
+    public void sendAck(Context ctx, int tid) {
+    }
+
+    @Override
+    public void sendNack(Context ctx, int tid) {
+    }
+
+    private void reply(final Context ctx, final PebbleDictionary resp) {
+        final int id = ptid++ & 0xff;
+        long delay = transmit(packetSize(resp));
+        Runnable deliver = new Runnable() {
+            @Override
+            public void run() {
+                pebble.receiveData(ctx, id, resp);
+            }
+        };
+        handler.postDelayed(deliver, delay);
+        if (random.nextDouble() < duplicateRate) {
+            duplicated++;
+            handler.postDelayed(deliver, delay + latency());
+        }
+    }
+
+    // Presses a button on the watch.
+    public void click(Context ctx, int button) {
+        PebbleDictionary pd = status(Pebble.STATUS_OK);
+        pd.addUint32(Pebble.KEY_TRANSACTION_ID, ++clicks);
+        pd.addUint32(Pebble.KEY_CLICK, button);
+        reply(ctx, pd);
+    }
+
+    // Restarts the watch app, losing all its windows and layers.
+    public void restart(final Context ctx) {
+        layers.clear();
+        layerWindow.clear();
+        strings.clear();
+        templates.clear();
+        fields.clear();
+        windows.clear();
+        windows.put(Pebble.ROOT_WINDOW_HANDLE, Pebble.ROOT_WINDOW_ID);
+        reply(ctx, status(Pebble.STATUS_STOPPED));
+        PebbleDictionary started = status(Pebble.STATUS_STARTED);
+        started.addUint32(Pebble.KEY_API_VERSION, apiVersion);
+        reply(ctx, started);
+    }
+
+    // How many windows and layers the watch has memory for; creating
+    // more fails with ENOMEM.
+    public void setMaxHandles(int max) {
+        maxHandles = max;
+    }
+
+    // The API version the watch app reports when it (re)starts.
+    public void setApiVersion(int version) {
+        apiVersion = version;
+    }
+
+    // The watch's decoder for KEY_ATTRIBUTE_TEXT_PACKED, done the way the
+    // C side does it: expand into a byte buffer, then read it as UTF-8.
+    static String unpackText(byte[] packed) throws java.io.UnsupportedEncodingException {
+        byte[] out = new byte[packed.length * 9];
+        int n = 0;
+        for (int i = 0; i < packed.length; ++i) {
+            int b = packed[i] & 0xff;
+            if (b == 0) {
+                if (++i < packed.length) {
+                    out[n++] = packed[i];
+                }
+            } else if (b < 0x80) {
+                out[n++] = (byte) b;
+            } else {
+                String d = PebbleTextCodec.DICTIONARY[b - 0x80];
+                for (int j = 0; j < d.length(); ++j) {
+                    out[n++] = (byte) d.charAt(j);
+                }
+            }
+        }
+        return new String(out, 0, n, "UTF-8");
+    }
+
+    private static String formatTimer(int format, int seconds) {
+        seconds = Math.max(seconds, 0);
+        switch (format) {
+            case Pebble.TIMER_FORMAT_MMSS:
+                return String.format(Locale.US, "%d:%02d", seconds / 60, seconds % 60);
+            case Pebble.TIMER_FORMAT_HMMSS:
+                return String.format(Locale.US, "%d:%02d:%02d",
+                        seconds / 3600, seconds / 60 % 60, seconds % 60);
+            default:
+                return Integer.toString(seconds);
+        }
+    }
+
+    private static PebbleDictionary status(int status) {
+        PebbleDictionary pd = new PebbleDictionary();
+        pd.addUint32(Pebble.KEY_STATUS, status);
+        return pd;
+    }
+
+    private PebbleDictionary error(PebbleDictionary req, int error) {
+        PebbleDictionary pd = status(Pebble.STATUS_ERR);
+        pd.addUint32(Pebble.KEY_ERROR_CODE, error);
+        pd.addUint32(Pebble.KEY_TRANSACTION_ID,
+                req.getUnsignedIntegerAsLong(Pebble.KEY_TRANSACTION_ID).intValue());
+        return pd;
+    }
+
+    private PebbleDictionary ok(PebbleDictionary req, int value) {
+        PebbleDictionary pd = status(Pebble.STATUS_OK);
+        pd.addUint32(Pebble.KEY_RETURN_VALUE, value);
+        pd.addUint32(Pebble.KEY_TRANSACTION_ID,
+                req.getUnsignedIntegerAsLong(Pebble.KEY_TRANSACTION_ID).intValue());
+        return pd;
+    }
+
+    private int intValue(PebbleDictionary req, int key) {
+        return req.getUnsignedIntegerAsLong(key).intValue();
+    }
+
+    private int layerKey(PebbleDictionary req) {
+        if (req.contains(Pebble.KEY_TEXT_LAYER_ID)) {
+            return Pebble.KEY_TEXT_LAYER_ID;
+        }
+        if (req.contains(Pebble.KEY_LIST_LAYER_ID)) {
+            return Pebble.KEY_LIST_LAYER_ID;
+        }
+        return Pebble.KEY_CANVAS_LAYER_ID;
+    }
+
+    private void applyFields(int lh, byte[] b) throws java.io.UnsupportedEncodingException {
+        String[] f = fields.get(lh);
+        if (f == null) {
+            f = new String[PebbleTemplateLayer.MAX_FIELDS];
+            fields.put(lh, f);
+        }
+        int i = 0;
+        while (i + 1 < b.length) {
+            int index = b[i++] & 0xff;
+            int type = b[i++] & 0xff;
+            if (type == Pebble.FIELD_INT) {
+                int v = 0;
+                int shift = 0;
+                int c;
+                do {
+                    c = b[i++] & 0xff;
+                    v |= (c & 0x7f) << shift;
+                    shift += 7;
+                } while ((c & 0x80) != 0);
+                f[index] = Integer.toString((v >>> 1) ^ -(v & 1));
+            } else {
+                int len = b[i++] & 0xff;
+                f[index] = new String(b, i, len, "UTF-8");
+                i += len;
+            }
+        }
+    }
+
+    private String render(int lh) {
+        String t = templates.get(lh);
+        if (t == null) {
+            return "";
+        }
+        String[] f = fields.get(lh);
+        for (int i = 0; f != null && i < f.length; ++i) {
+            if (f[i] != null) {
+                t = t.replace("{" + i + "}", f[i]);
+            }
+        }
+        return t;
+    }
+
+    // What the watch app does with a request.
+    PebbleDictionary process(PebbleDictionary req) {
+        int method = intValue(req, Pebble.KEY_METHOD_ID);
+        if (method != Pebble.FUNC_NEW_WINDOW && method != Pebble.FUNC_GET_DICTIONARY_BY_ID
+                && method != Pebble.FUNC_RESET_WINDOWS
+                && windows.get(intValue(req, Pebble.KEY_WINDOW_ID)) == null) {
+            return error(req, Pebble.ENOWINDOW);
+        }
+
+        switch (method) {
+            case Pebble.FUNC_NEW_WINDOW:
+            case Pebble.FUNC_GET_DICTIONARY_BY_ID: {
+                if (windows.size() + layers.size() >= maxHandles) {
+                    return error(req, Pebble.ENOMEM);
+                }
+                int wh = nextHandle++;
+                windows.put(wh, req.contains(Pebble.KEY_ID) ? intValue(req, Pebble.KEY_ID) : 0);
+                return ok(req, wh);
+            }
+
+            case Pebble.FUNC_NEW_TEXT_LAYER:
+            case Pebble.FUNC_GET_TEXT_LAYER_BY_ID:
+            case Pebble.FUNC_NEW_CANVAS_LAYER:
+            case Pebble.FUNC_GET_CANVAS_LAYER_BY_ID:
+            case Pebble.FUNC_NEW_LIST_LAYER:
+            case Pebble.FUNC_GET_LIST_LAYER_BY_ID: {
+                if (windows.size() + layers.size() >= maxHandles) {
+                    return error(req, Pebble.ENOMEM);
+                }
+                int lh = nextHandle++;
+                layers.put(lh, "");
+                layerWindow.put(lh, intValue(req, Pebble.KEY_WINDOW_ID));
+                return ok(req, lh);
+            }
+
+            case Pebble.FUNC_APPLY_ATTRIBUTES: {
+                int lh = intValue(req, layerKey(req));
+                if (layers.get(lh) == null) {
+                    return error(req, Pebble.ENOLAYER);
+                }
+                String text = null;
+                try {
+                    if (req.contains(Pebble.KEY_ATTRIBUTE_TEXT)) {
+                        text = new String(req.getBytes(Pebble.KEY_ATTRIBUTE_TEXT), "UTF-8");
+                        if (req.contains(Pebble.KEY_ATTRIBUTE_TEXT_STORE)) {
+                            strings.put(intValue(req, Pebble.KEY_ATTRIBUTE_TEXT_STORE), text);
+                        }
+                    }
+                    if (req.contains(Pebble.KEY_ATTRIBUTE_TEXT_PACKED)) {
+                        if (apiVersion < Pebble.API_VERSION_PACKED_TEXT) {
+                            return error(req, Pebble.EINVALID_OP);
+                        }
+                        text = unpackText(req.getBytes(Pebble.KEY_ATTRIBUTE_TEXT_PACKED));
+                        if (req.contains(Pebble.KEY_ATTRIBUTE_TEXT_STORE)) {
+                            strings.put(intValue(req, Pebble.KEY_ATTRIBUTE_TEXT_STORE), text);
+                        }
+                    }
+                    if (req.contains(Pebble.KEY_ATTRIBUTE_TEXT_SLOT)) {
+                        text = strings.get(intValue(req, Pebble.KEY_ATTRIBUTE_TEXT_SLOT));
+                        if (text == null) {
+                            return error(req, Pebble.EINVALID_OP);
+                        }
+                    }
+                    if (req.contains(Pebble.KEY_ATTRIBUTE_TEMPLATE)) {
+                        templates.put(lh, new String(req.getBytes(Pebble.KEY_ATTRIBUTE_TEMPLATE), "UTF-8"));
+                        text = render(lh);
+                    }
+                    if (req.contains(Pebble.KEY_ATTRIBUTE_FIELDS)) {
+                        applyFields(lh, req.getBytes(Pebble.KEY_ATTRIBUTE_FIELDS));
+                        text = render(lh);
+                    }
+                    if (req.contains(Pebble.KEY_ATTRIBUTE_ANIMATION)) {
+                        byte[] a = req.getBytes(Pebble.KEY_ATTRIBUTE_ANIMATION);
+                        if (a.length == 7 && a[0] == Pebble.ANIMATION_TIMER) {
+                            // Only the first frame; the rest never crosses the link.
+                            int seconds = (a[3] & 0xff) | (a[4] & 0xff) << 8
+                                    | (a[5] & 0xff) << 16 | a[6] << 24;
+                            text = formatTimer(a[1], seconds);
+                        }
+                    }
+                } catch (java.io.UnsupportedEncodingException e) {
+                    Log.d(TAG, "UnsupportedIOEncodingException: " + e.getMessage());
+                    return error(req, Pebble.EINVALID_OP);
+                }
+                if (text != null) {
+                    layers.put(lh, text);
+                    if (listener != null) {
+                        listener.applied(lh, text);
+                    }
+                }
+                return ok(req, 0);
+            }
+
+            case Pebble.FUNC_DESTROY_LAYER: {
+                int lh = intValue(req, layerKey(req));
+                if (layers.get(lh) == null) {
+                    return error(req, Pebble.ENOLAYER);
+                }
+                layers.remove(lh);
+                layerWindow.remove(lh);
+                templates.remove(lh);
+                fields.remove(lh);
+                return ok(req, 0);
+            }
+
+            case Pebble.FUNC_DESTROY_WINDOW: {
+                int wh = intValue(req, Pebble.KEY_WINDOW_ID);
+                windows.remove(wh);
+                for (int i = layerWindow.size() - 1; i >= 0; --i) {
+                    if (layerWindow.valueAt(i) == wh) {
+                        int lh = layerWindow.keyAt(i);
+                        layers.remove(lh);
+                        templates.remove(lh);
+                        fields.remove(lh);
+                        layerWindow.removeAt(i);
+                    }
+                }
+                return ok(req, 0);
+            }
+
+            case Pebble.FUNC_MOVE_LAYER:
+                if (layers.get(intValue(req, layerKey(req))) == null) {
+                    return error(req, Pebble.ENOLAYER);
+                }
+                return ok(req, 0);
+
+            case Pebble.FUNC_RESET_WINDOWS:
+                layers.clear();
+                layerWindow.clear();
+                templates.clear();
+                fields.clear();
+                windows.clear();
+                windows.put(Pebble.ROOT_WINDOW_HANDLE, Pebble.ROOT_WINDOW_ID);
+                return ok(req, 0);
+
+            case Pebble.FUNC_PUSH_WINDOW:
+            case Pebble.FUNC_REQUEST_CLICKS:
+            case Pebble.FUNC_CLEAR_WINDOW:
+                return ok(req, 0);
+
+            default:
+                return error(req, Pebble.EINVALID_OP);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.biro.pebble;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * The phone's copy of the watch's string slots.  The phone alone
+ * decides which slot a string goes in and which one gets evicted
+ * (least recently used); the watch just overwrites the slot named in
+ * KEY_ATTRIBUTE_TEXT_STORE, so both sides always agree.
+ */
+class PebbleStringCache {
+    private final int size;
+    private final Map<String, Integer> slots;
+    private final String[] contents;
+
+    PebbleStringCache(int size) {
+        this.size = size;
+        this.contents = new String[size];
+        this.slots = new LinkedHashMap<>(size * 2, 0.75f, true);
+    }
+
+    // Returns the slot holding text, or -1.
+    synchronized int lookup(String text) {
+        Integer slot = slots.get(text);
+        return slot == null ? -1 : slot;
+    }
+
+    // Picks a slot for text, evicting the least recently used one.
+    synchronized int store(String text) {
+        int slot;
+        if (slots.size() < size) {
+            slot = 0;
+            while (contents[slot] != null) {
+                slot++;
+            }
+        } else {
+            Iterator<Map.Entry<String, Integer>> it = slots.entrySet().iterator();
+            slot = it.next().getValue();
+            it.remove();
+        }
+        contents[slot] = text;
+        slots.put(text, slot);
+        return slot;
+    }
+
+    // We no longer know what the watch has in slot.
+    synchronized void invalidate(int slot) {
+        if (contents[slot] != null) {
+            slots.remove(contents[slot]);
+            contents[slot] = null;
+        }
+    }
+
+    synchronized void clear() {
+        slots.clear();
+        for (int i = 0; i < size; ++i) {
+            contents[i] = null;
+        }
+    }
+}
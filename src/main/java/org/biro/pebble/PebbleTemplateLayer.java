@@ -0,0 +1,186 @@
+package org.biro.pebble;
+
+import android.util.Log;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * A text layer whose text is a template like "HR {0} bpm  Pace {1}".
+ * The template is sent once; after that only fields that changed are
+ * sent, packed into KEY_ATTRIBUTE_FIELDS, and the watch fills them in.
+ */
+public class PebbleTemplateLayer extends PebbleTextLayer {
+    private static final String TAG = "PebbleTemplateLayer: ";
+
+    public static final int MAX_FIELDS = 16;
+
+    private String template = "";
+    private boolean template_changed = false;
+    private boolean template_inflight = false;
+
+    private final int[] types = new int[MAX_FIELDS];
+    private final int[] ints = new int[MAX_FIELDS];
+    private final String[] strings = new String[MAX_FIELDS];
+    private int set = 0; // fields that have a value.
+    private int dirty = 0;
+    private int inflight = 0;
+
+    public void setTemplate(String template) {
+        if (this.template.equals(template)) {
+            return;
+        }
+        this.template = template;
+        template_changed = true;
+    }
+
+    public void setField(int index, int value) {
+        if (!validField(index)) {
+            return;
+        }
+        int bit = 1 << index;
+        if ((set & bit) != 0 && types[index] == Pebble.FIELD_INT && ints[index] == value) {
+            return;
+        }
+        types[index] = Pebble.FIELD_INT;
+        ints[index] = value;
+        strings[index] = null;
+        set |= bit;
+        dirty |= bit;
+    }
+
+    public void setField(int index, String value) {
+        if (!validField(index)) {
+            return;
+        }
+        if (value == null) {
+            value = "";
+        }
+        int bit = 1 << index;
+        if ((set & bit) != 0 && types[index] == Pebble.FIELD_STRING && strings[index].equals(value)) {
+            return;
+        }
+        types[index] = Pebble.FIELD_STRING;
+        strings[index] = value;
+        set |= bit;
+        dirty |= bit;
+    }
+
+    private static boolean validField(int index) {
+        if (index < 0 || index >= MAX_FIELDS) {
+            Log.e(TAG, "No field " + index + ", templates have " + MAX_FIELDS);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void clearHandle() {
+        super.clearHandle();
+        // A new layer on the watch knows nothing about us.
+        template_changed = true;
+        dirty |= set;
+    }
+
+    @Override
+    protected boolean attributesChanged() {
+        return template_changed || dirty != 0;
+    }
+
+    @Override
+    protected void addAttributes(PebbleDictionary pd) {
+        // Anything still inflight never got an answer.
+        attributesFailed();
+
+        if (template_changed) {
+            try {
+                pd.addBytes(Pebble.KEY_ATTRIBUTE_TEMPLATE, template.getBytes("UTF-8"));
+                template_inflight = true;
+                template_changed = false;
+            } catch (java.io.UnsupportedEncodingException e) {
+                Log.d(TAG, "UnsupportedIOEncodingException: " + e.getMessage());
+            }
+        }
+
+        if (dirty == 0) {
+            return;
+        }
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        for (int i = 0; i < MAX_FIELDS; ++i) {
+            if ((dirty & (1 << i)) == 0) {
+                continue;
+            }
+            b.write(i);
+            b.write(types[i]);
+            if (types[i] == Pebble.FIELD_INT) {
+                // zigzag, then 7 bits at a time.
+                int v = (ints[i] << 1) ^ (ints[i] >> 31);
+                while ((v & ~0x7f) != 0) {
+                    b.write((v & 0x7f) | 0x80);
+                    v >>>= 7;
+                }
+                b.write(v);
+            } else {
+                byte[] s;
+                try {
+                    s = strings[i].getBytes("UTF-8");
+                } catch (java.io.UnsupportedEncodingException e) {
+                    Log.d(TAG, "UnsupportedIOEncodingException: " + e.getMessage());
+                    s = new byte[0];
+                }
+                int len = s.length;
+                if (len > 0xff) {
+                    // Cut it short, but not in the middle of a character.
+                    len = 0xff;
+                    while (len > 0 && (s[len] & 0xc0) == 0x80) {
+                        len--;
+                    }
+                }
+                b.write(len);
+                b.write(s, 0, len);
+            }
+        }
+        pd.addBytes(Pebble.KEY_ATTRIBUTE_FIELDS, b.toByteArray());
+        inflight = dirty;
+        dirty = 0;
+    }
+
+    @Override
+    protected void attributesApplied(PebbleDictionary req) {
+        template_inflight = false;
+        inflight = 0;
+    }
+
+    @Override
+    protected void attributesFailed() {
+        if (template_inflight) {
+            template_changed = true;
+            template_inflight = false;
+        }
+        dirty |= inflight;
+        inflight = 0;
+    }
+}
@@ -0,0 +1,139 @@
+package org.biro.pebble;
+
+import java.util.Locale;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Measures what text packing saves on a set of sample strings and what
+ * it costs to encode them.  Every string is decoded again with the
+ * PebbleSimulatedWatch decoder, and any that come back different are
+ * counted.  run(rounds) uses SAMPLES, the strings the dictionary was
+ * tuned on, so its numbers can be compared from one change to the next.
+ * runHeldOut(rounds) uses HELD_OUT, strings the dictionary never saw,
+ * which is closer to what an app will actually get.
+ */
+public class PebbleTextBenchmark {
+
+    // Typical strings from a running app's screens.  Packing takes them
+    // from 315 bytes to 166.
+    public static final String[] SAMPLES = {
+            "Distance 5.23 km",
+            "Pace 5:32/km",
+            "Heart rate 142 bpm",
+            "Elapsed 1:02:34",
+            "Lap 3 split 4:55",
+            "Average speed 11.2 km/h",
+            "Paused",
+            "Resume workout?",
+            "GPS signal lost",
+            "Battery low",
+            "Total time 45:10",
+            "Calories 320",
+            "Next interval in 0:30",
+            "Remaining 2.5 km",
+            "Cadence 172 spm",
+            "Elevation gain 120 m",
+            "Caf\u00e9 5\u20ac stra\u00dfe",
+            "Goal reached! Well done",
+            "Connecting to phone",
+            "Settings",
+    };
+
+    // More strings of the same kind, written without looking at the
+    // dictionary.  Packing takes them from 306 bytes to 224, a 27%
+    // saving against 47% on SAMPLES; expect the lower figure.
+    public static final String[] HELD_OUT = {
+            "Moving time 38:12",
+            "Best pace 4:48/km",
+            "Zone 3 tempo",
+            "Max heart rate 176",
+            "Stride length 1.12 m",
+            "Warm up for 10 minutes",
+            "Cool down",
+            "Route saved",
+            "Sync complete",
+            "Low storage on phone",
+            "Outdoor run",
+            "Treadmill",
+            "Weekly total 32.4 km",
+            "Personal best!",
+            "Descent 85 m",
+            "Temperature 18\u00b0C",
+            "Waiting for location",
+            "Auto pause on",
+            "Hold to end run",
+            "Vibrate every km",
+    };
+
+    public static class Report {
+        public int strings;
+        public int rawBytes;
+        public int sentBytes; // packed only where that was smaller.
+        public long encodeNanos; // per string.
+        public int mismatches;
+
+        public double getSaving() {
+            return rawBytes == 0 ? 0 : 1.0 - (double) sentBytes / rawBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d strings, %d bytes raw, %d sent (%.1f%% saved), %d ns/encode, %d mismatches",
+                    strings, rawBytes, sentBytes, getSaving() * 100, encodeNanos, mismatches);
+        }
+    }
+
+    public static Report run(int rounds) throws java.io.UnsupportedEncodingException {
+        return run(SAMPLES, rounds);
+    }
+
+    public static Report runHeldOut(int rounds) throws java.io.UnsupportedEncodingException {
+        return run(HELD_OUT, rounds);
+    }
+
+    public static Report run(String[] samples, int rounds) throws java.io.UnsupportedEncodingException {
+        Report r = new Report();
+        r.strings = samples.length;
+        for (String s : samples) {
+            int raw = s.getBytes("UTF-8").length;
+            byte[] packed = PebbleTextCodec.encode(s);
+            r.rawBytes += raw;
+            r.sentBytes += Math.min(raw, packed.length);
+            if (!PebbleSimulatedWatch.unpackText(packed).equals(s)) {
+                r.mismatches++;
+            }
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; ++i) {
+            for (String s : samples) {
+                PebbleTextCodec.encode(s);
+            }
+        }
+        long calls = (long) rounds * samples.length;
+        r.encodeNanos = calls == 0 ? 0 : (System.nanoTime() - start) / calls;
+        return r;
+    }
+}
@@ -0,0 +1,123 @@
+package org.biro.pebble;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Packs short UI strings for KEY_ATTRIBUTE_TEXT_PACKED.  Each packed byte is
+ * one of:
+ * <p/>
+ * 0x01 - 0x7f  that ASCII character.
+ * 0x80 - 0xff  DICTIONARY[b - 0x80].
+ * 0x00 b       the raw byte b, for anything else in the UTF-8.
+ * <p/>
+ * The dictionary is fixed and the watch has the same copy, so it can
+ * never change once shipped; a new one needs a new API version.
+ */
+class PebbleTextCodec {
+
+    static final String[] DICTIONARY = {
+            // words
+            "Distance", "Duration", "Elapsed", "Calories", "Average", "Heart", "Speed", "Pace",
+            "Time", "Total", "Lap ", "Avg ", "Max ", "bpm", " km", "km/h",
+            " mi", "mph", "/km", "/mi", "Start", "Stop", "Pause", "Resume",
+            "Running", "Paused", "Workout", "Finished", "Battery", "GPS", "Signal", "Ready",
+            "Split", "Step", "Goal", "Remaining", "Cadence", "Elevation", "Climb", "Interval",
+            " min", " sec", "Next", "Back", "Cancel", "Menu", "Settings", "Done",
+            "Error", "No ", "Connect", "ing ", "tion", " the ", "and ", "of ",
+            "to ", "in ", "is ",
+            // word ends and common pairs
+            "e ", "s ", "t ", "d ", "y ", "r ", "n ",
+            "th", "he", "er", "in", "an", "re", "on", "at",
+            "en", "es", "or", "te", "ed", "ti", "st", "ar",
+            "nd", "ou", "ea", "ng", "al", "se", "le", "ce",
+            "ra", "ri", "ro", "la", "li", "ne", "me", "ma",
+            "ll", "ck", "ch", "ow", "ay", "ur", "ve", "de",
+            "co",
+            // numbers and punctuation
+            "00", ":0", ":1", ":2", ":3", ":4", ":5", "0:",
+            "1:", "2:", ".0", ".5", "10", "20", "30", ", ",
+            "  ", " / ", " - ", "% ", ": ",
+    };
+
+    // Dictionary entries by first character, longest first, so the
+    // greedy match only looks at a few.
+    private static final int[][] BY_FIRST = new int[128][];
+
+    static {
+        int[] count = new int[128];
+        for (String s : DICTIONARY) {
+            count[s.charAt(0)]++;
+        }
+        for (int c = 0; c < 128; ++c) {
+            BY_FIRST[c] = new int[count[c]];
+            count[c] = 0;
+        }
+        for (int i = 0; i < DICTIONARY.length; ++i) {
+            int c = DICTIONARY[i].charAt(0);
+            int[] list = BY_FIRST[c];
+            int j = count[c]++;
+            while (j > 0 && DICTIONARY[list[j - 1]].length() < DICTIONARY[i].length()) {
+                list[j] = list[j - 1];
+                j--;
+            }
+            list[j] = i;
+        }
+    }
+
+    static byte[] encode(String text) throws java.io.UnsupportedEncodingException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(text.length());
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (c < 128) {
+                int match = -1;
+                for (int d : BY_FIRST[c]) {
+                    if (text.startsWith(DICTIONARY[d], i)) {
+                        match = d;
+                        break;
+                    }
+                }
+                if (match >= 0) {
+                    out.write(0x80 + match);
+                    i += DICTIONARY[match].length();
+                    continue;
+                }
+                if (c != 0) {
+                    out.write(c);
+                    i++;
+                    continue;
+                }
+            }
+            // Escape each UTF-8 byte of this code point.
+            int end = i + Character.charCount(text.codePointAt(i));
+            for (byte b : text.substring(i, end).getBytes("UTF-8")) {
+                out.write(0);
+                out.write(b);
+            }
+            i = end;
+        }
+        return out.toByteArray();
+    }
+}
@@ -5,6 +5,8 @@ import android.util.Log;
 
 import com.getpebble.android.kit.util.PebbleDictionary;
 
+import java.util.Arrays;
+
 /**
  * AndroidRun, basic runner's android application. Calculates distance, speed
  * and other useful values taken from GPS device.
@@ -48,6 +50,28 @@ public class PebbleTextLayer implements PebbleLayer {
 
     String text="";
     boolean text_changed = false;
+    // Bumped whenever what the text layer shows has to go again, so an
+    // ack only clears text_changed if nothing changed while in flight.
+    private int text_gen = 0;
+
+    // Unset until setRect(); the watch's default frame is used and the
+    // text isn't laid out here.
+    private int[] rect = null;
+    private boolean rect_changed = false;
+    private boolean ellipsis = true;
+
+    // A timer on the watch is trusted until it's this far off.
+    private static final int DRIFT_TOLERANCE = 1000; // ms.
+    private byte[] animation = null;
+    private boolean animation_changed = false;
+    private int timer_step = 0;
+    private int timer_seconds = 0;
+    private long timer_at = 0;
+
+    // Texts shorter than this cost less to send than a slot reference.
+    private static final int MIN_CACHED_LENGTH = 8;
+    // The slot the apply being built stores to or refers to, -1 if none.
+    private int sent_slot = -1;
 
     public int getId() {
         return id;
@@ -59,17 +83,57 @@ public class PebbleTextLayer implements PebbleLayer {
 
     private int id = 0;
 
+    @Override
+    public int getHandle() {
+        return tlh;
+    }
+
+    @Override
+    public int getHandleKey() {
+        return Pebble.KEY_TEXT_LAYER_ID;
+    }
+
     public void clearHandle() {
 
         tlh = -1;
-        //fg_changed = true;
-        //bg_changed = true;
-        //alignment_changed = true;
-        //font_changed = true;
-        //text_changed = true;
+        // A new layer on the watch has none of our attributes.
+        fg_changed = true;
+        bg_changed = true;
+        alignment_changed = true;
+        font_changed = true;
+        textChanged();
+        rect_changed = rect != null;
+        animation_changed = animation != null;
+    }
+
+    private void textChanged() {
+        text_changed = true;
+        text_gen++;
     }
 
-    private void updateChanged(PebbleDictionary pd) {
+    // gen is text_gen when pd was built.
+    private void updateChanged(PebbleDictionary pd, int gen) {
+        // What went may have been cut to fit or laid out for an old frame,
+        // font or animation, so go by whether any of that changed since.
+        if (pd.contains(Pebble.KEY_ATTRIBUTE_TEXT_SLOT) || pd.contains(Pebble.KEY_ATTRIBUTE_TEXT)
+                || pd.contains(Pebble.KEY_ATTRIBUTE_TEXT_PACKED)) {
+            text_changed = gen != text_gen;
+        }
+
+        if (pd.contains(Pebble.KEY_ATTRIBUTE_ANIMATION)) {
+            byte[] sent = pd.getBytes(Pebble.KEY_ATTRIBUTE_ANIMATION);
+            animation_changed = !Arrays.equals(sent, animation);
+            if (!animation_changed && isTimer()) {
+                // The watch counts from the value sent, starting about now.
+                timer_seconds = timerSeconds(sent);
+                timer_at = System.currentTimeMillis();
+            }
+        }
+
+        if (pd.contains(Pebble.KEY_ATTRIBUTE_RECT)) {
+            rect_changed = !Arrays.equals(pd.getBytes(Pebble.KEY_ATTRIBUTE_RECT), encodeRect());
+        }
+
         if (pd.contains(Pebble.KEY_ATTRIBUTE_FG_COLOR)) {
             fg_changed = !(pd.getUnsignedIntegerAsLong(Pebble.KEY_ATTRIBUTE_FG_COLOR).intValue() == fg);
         }
@@ -86,25 +150,29 @@ public class PebbleTextLayer implements PebbleLayer {
             font_changed = !pd.getString(Pebble.KEY_ATTRIBUTE_FONT).equals(font);
         }
 
-        if (pd.contains(Pebble.KEY_ATTRIBUTE_TEXT)) {
-            try {
-                text_changed = !pd.getString(Pebble.KEY_ATTRIBUTE_TEXT).equals(text);
-            } catch (Exception e) {
-                Log.d(TAG, "Text comapre exception: " + e.getMessage());
-            }
-            try {
-                byte[] bytes = pd.getBytes(Pebble.KEY_ATTRIBUTE_TEXT);
-                String s = new String(bytes, "UTF-8");
-                text_changed = !s.equals(text);
-            } catch (Exception e) {
-                Log.d(TAG, "Text comare exception2: " + e.getMessage());
-            }
-        }
     }
 
     @Override
     public boolean changed() {
-        return fg_changed || bg_changed || font_changed || alignment_changed || text_changed;
+        return fg_changed || bg_changed || font_changed || alignment_changed || text_changed
+                || rect_changed || animation_changed || attributesChanged();
+    }
+
+    // Hooks for layers that send more attributes than a plain text
+    // layer.  addAttributes() adds whatever changed to an apply request;
+    // attributesApplied() or attributesFailed() is called once the watch
+    // has answered it.
+    protected boolean attributesChanged() {
+        return false;
+    }
+
+    protected void addAttributes(PebbleDictionary pd) {
+    }
+
+    protected void attributesApplied(PebbleDictionary req) {
+    }
+
+    protected void attributesFailed() {
     }
 
     private void connect(final PebbleWindow pw, Context ctx) {
@@ -114,15 +182,15 @@ public class PebbleTextLayer implements PebbleLayer {
                 pd = new PebbleDictionary();
                 pd.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_GET_TEXT_LAYER_BY_ID);
                 pd.addUint32(Pebble.KEY_ID, id);
-                pw.send(ctx, pd, new Pebble.PebbleFinishedCallback() {
+                pw.send(ctx, pd, new Pebble.PebbleMessageCallback() {
                     @Override
-                    public void processIncoming(Context ctx, int tid, PebbleDictionary resp,
-                                                PebbleDictionary req) {
-                        if (resp.getUnsignedIntegerAsLong(Pebble.KEY_STATUS) == Pebble.STATUS_ERR) {
-                            pw.handleError(ctx, tid, resp, req);
+                    public void processMessage(Context ctx, PebbleMessage msg,
+                                               PebbleDictionary req) {
+                        if (msg.status == Pebble.STATUS_ERR) {
+                            pw.handleError(ctx, msg);
                             return;
                         }
-                        tlh = resp.getUnsignedIntegerAsLong(Pebble.KEY_RETURN_VALUE).intValue();
+                        tlh = msg.returnValue;
                         pw.updateStatus(ctx);
                     }
                 });
@@ -130,15 +198,15 @@ public class PebbleTextLayer implements PebbleLayer {
             } else {
                 pd = new PebbleDictionary();
                 pd.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_NEW_TEXT_LAYER);
-                pw.send(ctx, pd, new Pebble.PebbleFinishedCallback() {
+                pw.send(ctx, pd, new Pebble.PebbleMessageCallback() {
                     @Override
-                    public void processIncoming(Context ctx, int tid, PebbleDictionary resp,
-                                                PebbleDictionary req) {
-                        if (resp.getUnsignedIntegerAsLong(Pebble.KEY_STATUS) == Pebble.STATUS_OK) {
-                            tlh = resp.getUnsignedIntegerAsLong(Pebble.KEY_RETURN_VALUE).intValue();
+                    public void processMessage(Context ctx, PebbleMessage msg,
+                                               PebbleDictionary req) {
+                        if (msg.status == Pebble.STATUS_OK) {
+                            tlh = msg.returnValue;
                             pw.updateStatus(ctx);
                         } else {
-                            pw.handleError(ctx, tid, resp, req);
+                            pw.handleError(ctx, msg);
                         }
                     }
                 });
@@ -183,20 +251,46 @@ public class PebbleTextLayer implements PebbleLayer {
             pd.addUint32(Pebble.KEY_ATTRIBUTE_ALIGNMENT, alignment);
         }
 
-        if (text_changed) {
-            try {
-                byte[] b = text.getBytes("UTF-8");
-                pd.addBytes(Pebble.KEY_ATTRIBUTE_TEXT, b);
-            } catch (java.io.UnsupportedEncodingException e) {
-                Log.d(TAG, "UnsupportedIOEncodingException: " + e.getMessage());
+        if (rect_changed) {
+            pd.addBytes(Pebble.KEY_ATTRIBUTE_RECT, encodeRect());
+        }
+
+        if (animation_changed) {
+            if (isTimer()) {
+                // It may have waited, or be going again after a failure,
+                // so start the watch from where the timer is now.
+                long now = System.currentTimeMillis();
+                int seconds = (int) (timer_seconds + timer_step * (now - timer_at) / 1000);
+                animation = timerAnimation(animation[1], timer_step, seconds);
             }
+            pd.addBytes(Pebble.KEY_ATTRIBUTE_ANIMATION, animation);
+        }
+
+        sent_slot = -1;
+        if (text_changed) {
+            addText(pd, pw.getParent());
         }
+        final int slot = sent_slot;
+        final int gen = text_gen;
 
-        pw.send(ctx, pd, new Pebble.PebbleFinishedCallback() {
+        addAttributes(pd);
+
+        pw.send(ctx, pd, new Pebble.PebbleMessageCallback() {
             @Override
-            public void processIncoming(Context ctx, int tid,
-                                        PebbleDictionary resp, PebbleDictionary req) {
-                updateChanged(req);
+            public void processMessage(Context ctx, PebbleMessage msg, PebbleDictionary req) {
+                if (msg.status != Pebble.STATUS_OK) {
+                    // Leave everything marked changed so it goes again.
+                    if (slot >= 0) {
+                        // Don't know whether the watch stored it, or it
+                        // didn't have what we referred to.
+                        pw.getParent().getStringCache().invalidate(slot);
+                    }
+                    attributesFailed();
+                    pw.handleError(ctx, msg);
+                    return;
+                }
+                updateChanged(req, gen);
+                attributesApplied(req);
                 pw.updateStatus(ctx);
             }
         });
@@ -204,12 +298,170 @@ public class PebbleTextLayer implements PebbleLayer {
         return true;
     }
 
+    // Sends a slot reference if the watch already has this text,
+    // otherwise the text itself, stored in a slot if it's long enough
+    // to be worth it.
+    private void addText(PebbleDictionary pd, Pebble p) {
+        PebbleStringCache cache = p.getStringCache();
+        String shown = text;
+        if (rect != null && !isScrolling()) {
+            shown = PebbleTextLayout.fit(font, rect[2], rect[3], ellipsis, text);
+        }
+        int slot = cache.lookup(shown);
+        if (slot >= 0) {
+            sent_slot = slot;
+            pd.addUint8(Pebble.KEY_ATTRIBUTE_TEXT_SLOT, (byte) slot);
+            return;
+        }
+        try {
+            byte[] b = shown.getBytes("UTF-8");
+            byte[] packed = p.canPackText() ? PebbleTextCodec.encode(shown) : null;
+            if (packed != null && packed.length < b.length) {
+                pd.addBytes(Pebble.KEY_ATTRIBUTE_TEXT_PACKED, packed);
+            } else {
+                pd.addBytes(Pebble.KEY_ATTRIBUTE_TEXT, b);
+            }
+            if (b.length >= MIN_CACHED_LENGTH) {
+                sent_slot = cache.store(shown);
+                pd.addUint8(Pebble.KEY_ATTRIBUTE_TEXT_STORE, (byte) sent_slot);
+            }
+        } catch (java.io.UnsupportedEncodingException e) {
+            Log.d(TAG, "UnsupportedIOEncodingException: " + e.getMessage());
+        }
+    }
+
+    // [x, y, w, h] as little endian int16s.
+    private byte[] encodeRect() {
+        byte[] b = new byte[8];
+        for (int i = 0; i < 4; ++i) {
+            b[i * 2] = (byte) rect[i];
+            b[i * 2 + 1] = (byte) (rect[i] >> 8);
+        }
+        return b;
+    }
+
+    // Sets the layer's frame.  From then on text is wrapped and cut
+    // to fit it before it's sent.
+    public void setRect(int x, int y, int w, int h) {
+        int[] r = {x, y, w, h};
+        if (Arrays.equals(r, rect)) {
+            return;
+        }
+        // Moving it doesn't change what fits.
+        if (rect == null || rect[2] != w || rect[3] != h) {
+            textChanged();
+        }
+        rect = r;
+        rect_changed = true;
+    }
+
+    public void setFont(String font) {
+        if (this.font.equals(font)) {
+            return;
+        }
+        this.font = font;
+        font_changed = true;
+        if (rect != null) {
+            textChanged();
+        }
+    }
+
+    // Whether text cut short ends in an ellipsis.  Defaults to true.
+    public void setEllipsis(boolean ellipsis) {
+        if (this.ellipsis == ellipsis) {
+            return;
+        }
+        this.ellipsis = ellipsis;
+        if (rect != null) {
+            textChanged();
+        }
+    }
+
+    private boolean isTimer() {
+        return animation != null && animation[0] == Pebble.ANIMATION_TIMER;
+    }
+
+    private static byte[] timerAnimation(int format, int step, int seconds) {
+        byte[] a = new byte[7];
+        a[0] = (byte) Pebble.ANIMATION_TIMER;
+        a[1] = (byte) format;
+        a[2] = (byte) step;
+        for (int i = 0; i < 4; ++i) {
+            a[3 + i] = (byte) (seconds >> (i * 8));
+        }
+        return a;
+    }
+
+    private static int timerSeconds(byte[] a) {
+        int seconds = 0;
+        for (int i = 0; i < 4; ++i) {
+            seconds |= (a[3 + i] & 0xff) << (i * 8);
+        }
+        return seconds;
+    }
+
+    private boolean isScrolling() {
+        return animation != null && animation[0] == Pebble.ANIMATION_SCROLL;
+    }
+
+    private void setAnimation(byte[] a) {
+        boolean scrolled = isScrolling();
+        boolean timed = isTimer();
+        animation = a;
+        animation_changed = true;
+        if (rect != null && scrolled != isScrolling()) {
+            // Scrolling text goes whole, anything else is cut to fit.
+            textChanged();
+        }
+        if (timed && a[0] != Pebble.ANIMATION_TIMER) {
+            // The watch shows the timer's last frame until it gets the
+            // text again, even if the text itself hasn't changed.
+            textChanged();
+        }
+    }
+
+    // Shows a timer the watch advances by itself, step seconds each
+    // second (1 counts up, -1 down, 0 holds).  Call it as often as the
+    // old setText() was; nothing is sent while the watch's timer is
+    // within DRIFT_TOLERANCE of seconds and step and format are the same.
+    public void setTimer(int seconds, int step, int format) {
+        long now = System.currentTimeMillis();
+        if (isTimer() && animation[1] == format && timer_step == step) {
+            long expected = timer_seconds * 1000L + step * (now - timer_at);
+            if (Math.abs(expected - seconds * 1000L) <= DRIFT_TOLERANCE) {
+                return;
+            }
+        }
+        timer_step = step;
+        timer_seconds = seconds;
+        timer_at = now;
+        setAnimation(timerAnimation(format, step, seconds));
+    }
+
+    // Scrolls the layer's text across it, marquee style.
+    public void setScroll(int pixelsPerSecond) {
+        setAnimation(new byte[]{(byte) Pebble.ANIMATION_SCROLL, (byte) pixelsPerSecond});
+    }
+
+    public void setBlink(int onMs, int offMs) {
+        setAnimation(new byte[]{(byte) Pebble.ANIMATION_BLINK,
+                (byte) onMs, (byte) (onMs >> 8), (byte) offMs, (byte) (offMs >> 8)});
+    }
+
+    // Back to plain text.
+    public void stopAnimation() {
+        if (animation == null || animation[0] == Pebble.ANIMATION_NONE) {
+            return;
+        }
+        setAnimation(new byte[]{(byte) Pebble.ANIMATION_NONE});
+    }
+
     public void setText(String text) {
-        if (this.text == text) {
+        if (this.text.equals(text)) {
             return;
         }
 
         this.text = text;
-        this.text_changed = true;
+        textChanged();
     }
 }
@@ -0,0 +1,142 @@
+package org.biro.pebble;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Word wraps text the way the watch will and cuts it off after the last
+ * line that fits in the layer, so the part the watch would clip never
+ * gets sent.  Results are remembered per font, size and text, since the
+ * same few strings tend to be laid out over and over.
+ */
+class PebbleTextLayout {
+
+    static final String ELLIPSIS = "…";
+
+    private static final int CACHE_SIZE = 64;
+
+    private static final Map<String, String> cache =
+            new LinkedHashMap<String, String>(CACHE_SIZE * 2, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    // Returns the part of text that shows in a w by h layer, ending in
+    // an ellipsis if it was cut short and ellipsis is set.  Text in a
+    // font we have no metrics for is returned whole.
+    static String fit(String font, int w, int h, boolean ellipsis, String text) {
+        PebbleFontMetrics m = PebbleFontMetrics.get(font);
+        if (m == null) {
+            return text;
+        }
+        String key = font + '\0' + w + ',' + h + (ellipsis ? ",e" : ",") + '\0' + text;
+        synchronized (cache) {
+            String s = cache.get(key);
+            if (s != null) {
+                return s;
+            }
+        }
+        String s = layout(m, w, h, ellipsis, text);
+        synchronized (cache) {
+            cache.put(key, s);
+        }
+        return s;
+    }
+
+    private static String layout(PebbleFontMetrics m, int w, int h, boolean ellipsis, String text) {
+        int lines = h / m.getLineHeight();
+        int len = text.length();
+        int start = 0;
+        int end = 0;
+        for (int line = 0; line < lines; ++line) {
+            if (start >= len) {
+                return text;
+            }
+            // Find where this line ends and the next one starts.
+            int x = 0;
+            int space = -1;
+            int i = start;
+            int next = len;
+            end = len;
+            while (i < len) {
+                int c = text.codePointAt(i);
+                if (c == '\n') {
+                    end = i;
+                    next = i + 1;
+                    break;
+                }
+                int cw = m.width(c);
+                if (x + cw > w) {
+                    if (space > start) {
+                        end = space;
+                        next = space + 1;
+                    } else {
+                        // One long word, break it wherever.
+                        end = i > start ? i : i + Character.charCount(c);
+                        next = end;
+                    }
+                    break;
+                }
+                if (c == ' ') {
+                    space = i;
+                }
+                x += cw;
+                i += Character.charCount(c);
+            }
+            if (next >= len) {
+                return text;
+            }
+            if (line == lines - 1) {
+                break;
+            }
+            start = next;
+        }
+
+        if (lines <= 0) {
+            return "";
+        }
+        if (ellipsis) {
+            // Make room for it at the end of the last line.
+            int room = w - width(m, ELLIPSIS);
+            while (end > start && width(m, text.substring(start, end)) > room) {
+                end = text.offsetByCodePoints(end, -1);
+            }
+        }
+        while (end > start && text.charAt(end - 1) == ' ') {
+            end--;
+        }
+        return ellipsis ? text.substring(0, end) + ELLIPSIS : text.substring(0, end);
+    }
+
+    private static int width(PebbleFontMetrics m, String s) {
+        int x = 0;
+        for (int i = 0; i < s.length(); i += Character.charCount(s.codePointAt(i))) {
+            x += m.width(s.codePointAt(i));
+        }
+        return x;
+    }
+}
@@ -0,0 +1,240 @@
+package org.biro.pebble;
+
+import android.util.Log;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+import com.getpebble.android.kit.util.PebbleTuple;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Binary trace of everything a Pebble sends and receives.  Events are
+ * encoded on the caller's thread and written by a background thread
+ * through a buffered stream, so recording costs the main thread one
+ * small allocation per packet.  If the writer falls behind, events are
+ * dropped and counted rather than blocking.
+ * <p/>
+ * File: int magic, then per event [type u8][nanoTime long][tid int]
+ * [dictionary], where a dictionary is [count u8] followed by
+ * [key int][type u8][width u8][value] per tuple.
+ */
+public class PebbleTrace {
+    private static final String TAG = "PebbleTrace: ";
+
+    public static final int EVENT_OUT = 1;
+    public static final int EVENT_IN = 2;
+    public static final int EVENT_ACK = 3;
+    public static final int EVENT_NACK = 4;
+    public static final int EVENT_CONNECT = 5;
+    public static final int EVENT_DISCONNECT = 6;
+
+    static final int MAGIC = 0x50545231; // "PTR1"
+
+    private static final int QUEUE_SIZE = 1024;
+    private static final byte[] END = new byte[0];
+
+    private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final Thread writer;
+    private volatile int dropped = 0;
+
+    PebbleTrace(File f) throws IOException {
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(f)));
+        out.writeInt(MAGIC);
+        writer = new Thread("PebbleTrace") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        byte[] b = queue.take();
+                        if (b == END) {
+                            break;
+                        }
+                        out.write(b);
+                        if (queue.isEmpty()) {
+                            out.flush();
+                        }
+                    }
+                } catch (InterruptedException | IOException e) {
+                    Log.e(TAG, "Trace writer stopped: " + e.getMessage());
+                } finally {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Closing trace: " + e.getMessage());
+                    }
+                }
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public int getDropped() {
+        return dropped;
+    }
+
+    void record(int type, int tid, PebbleDictionary data) {
+        long now = System.nanoTime();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(type);
+            out.writeLong(now);
+            out.writeInt(tid);
+            writeDictionary(out, data);
+        } catch (IOException e) {
+            Log.e(TAG, "Encoding event: " + e.getMessage());
+            return;
+        }
+        if (!queue.offer(bytes.toByteArray())) {
+            dropped++;
+        }
+    }
+
+    void close() {
+        try {
+            queue.put(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static void writeDictionary(DataOutputStream out, PebbleDictionary data) throws IOException {
+        if (data == null) {
+            out.writeByte(0);
+            return;
+        }
+        out.writeByte(data.size());
+        for (PebbleTuple t : data) {
+            out.writeInt(t.key);
+            out.writeByte(t.type.ordinal());
+            out.writeByte(t.width.value);
+            switch (t.type) {
+                case UINT:
+                case INT:
+                    out.writeLong(((Number) t.value).longValue());
+                    break;
+                case STRING:
+                    out.writeUTF((String) t.value);
+                    break;
+                case BYTES:
+                    byte[] b = (byte[]) t.value;
+                    out.writeShort(b.length);
+                    out.write(b);
+                    break;
+            }
+        }
+    }
+
+    static PebbleDictionary readDictionary(DataInputStream in) throws IOException {
+        int count = in.readUnsignedByte();
+        if (count == 0) {
+            return null;
+        }
+        PebbleDictionary pd = new PebbleDictionary();
+        for (int i = 0; i < count; ++i) {
+            int key = in.readInt();
+            PebbleTuple.TupleType type = PebbleTuple.TupleType.values()[in.readUnsignedByte()];
+            int width = in.readUnsignedByte();
+            switch (type) {
+                case UINT: {
+                    long v = in.readLong();
+                    if (width == 1) {
+                        pd.addUint8(key, (byte) v);
+                    } else if (width == 2) {
+                        pd.addUint16(key, (short) v);
+                    } else {
+                        pd.addUint32(key, (int) v);
+                    }
+                    break;
+                }
+                case INT: {
+                    long v = in.readLong();
+                    if (width == 1) {
+                        pd.addInt8(key, (byte) v);
+                    } else if (width == 2) {
+                        pd.addInt16(key, (short) v);
+                    } else {
+                        pd.addInt32(key, (int) v);
+                    }
+                    break;
+                }
+                case STRING:
+                    pd.addString(key, in.readUTF());
+                    break;
+                case BYTES: {
+                    byte[] b = new byte[in.readUnsignedShort()];
+                    in.readFully(b);
+                    pd.addBytes(key, b);
+                    break;
+                }
+            }
+        }
+        return pd;
+    }
+
+    // One event read back from a trace.
+    public static class Event {
+        public int type;
+        public long nanos;
+        public int tid;
+        public PebbleDictionary data;
+    }
+
+    static void readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a Pebble trace");
+        }
+    }
+
+    // Returns false at the end of the trace.
+    static boolean readEvent(DataInputStream in, Event e) throws IOException {
+        int type = in.read();
+        if (type < 0) {
+            return false;
+        }
+        try {
+            e.type = type;
+            e.nanos = in.readLong();
+            e.tid = in.readInt();
+            e.data = readDictionary(in);
+        } catch (EOFException eof) {
+            // Truncated by a crash while recording.
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,209 @@
+package org.biro.pebble;
+
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+import android.util.SparseIntArray;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.UUID;
+
+/**
+ * AndroidRun, basic runner's android application. Calculates distance, speed
+ * and other useful values taken from GPS device.
+ * <p/>
+ * This file is part of the Pebble Canvas Interface
+ * <p/>
+ * Copyright (C) 2015 Ross Biro
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ * <p/>
+ * <p/>
+ * Feeds a trace recorded by Pebble.startTrace() back through a Pebble.
+ * Inbound packets, acks, nacks and connection changes are posted in
+ * order to the Pebble's handler, either back to back or with the
+ * recorded spacing, so the Pebble's own work runs between them just as
+ * it did live.  Outgoing packets are swallowed.  replay() returns at
+ * once and the listener hears when the trace has run out.
+ * <p/>
+ * Our transaction ids are random, so the n'th packet the Pebble sends
+ * during the replay is matched with the n'th recorded one and the
+ * replayed responses are rewritten to carry the live id.  Recorded
+ * packets the Pebble never sent again are counted as divergences.
+ */
+public class PebbleTraceReplayer {
+    private static final String TAG = "PebbleTraceReplayer: ";
+
+    public interface Listener {
+        void finished(PebbleTraceReplayer r);
+    }
+
+    private final Pebble pebble;
+    private final File file;
+
+    private final ArrayDeque<Integer> sent = new ArrayDeque<>();
+    private final SparseIntArray tids = new SparseIntArray();
+    private int events = 0;
+    private int divergences = 0;
+
+    public PebbleTraceReplayer(Pebble pebble, File file) {
+        this.pebble = pebble;
+        this.file = file;
+    }
+
+    public int getEvents() {
+        return events;
+    }
+
+    public int getDivergences() {
+        return divergences;
+    }
+
+    public void replay(final Context ctx, final boolean realTime, final Listener listener)
+            throws IOException {
+        final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            PebbleTrace.readHeader(in);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+
+        final Pebble.PebbleTransport saved = pebble.getTransport();
+        pebble.setTransport(new Pebble.PebbleTransport() {
+            @Override
+            public void sendData(Context ctx, UUID uuid, PebbleDictionary data, int tid) {
+                sent.add(tid);
+            }
+
+            @Override
+            public void sendAck(Context ctx, int tid) {
+            }
+
+            @Override
+            public void sendNack(Context ctx, int tid) {
+            }
+        });
+
+        final Handler handler = pebble.getHandler();
+        handler.post(new Runnable() {
+            private final PebbleTrace.Event e = new PebbleTrace.Event();
+            private boolean pending = false;
+            private long first = -1;
+            private long start;
+
+            @Override
+            public void run() {
+                if (pending) {
+                    dispatch(ctx, e);
+                    events++;
+                    pending = false;
+                }
+                try {
+                    if (PebbleTrace.readEvent(in, e)) {
+                        pending = true;
+                        long wait = 0;
+                        if (first < 0) {
+                            first = e.nanos;
+                            start = System.nanoTime();
+                        } else if (realTime) {
+                            wait = (e.nanos - first) - (System.nanoTime() - start);
+                        }
+                        handler.postDelayed(this, Math.max(0, wait / 1000000));
+                        return;
+                    }
+                } catch (IOException ioe) {
+                    Log.e(TAG, "Reading trace failed: " + ioe.getMessage());
+                }
+                finish();
+            }
+
+            private void finish() {
+                try {
+                    in.close();
+                } catch (IOException ioe) {
+                    Log.e(TAG, "Closing trace failed: " + ioe.getMessage());
+                }
+                pebble.setTransport(saved);
+                if (listener != null) {
+                    listener.finished(PebbleTraceReplayer.this);
+                }
+            }
+        });
+    }
+
+    // The live id the Pebble used for a recorded packet, or the recorded
+    // one if we never matched it.
+    private int liveTid(int tid) {
+        return tids.get(tid, tid);
+    }
+
+    private void dispatch(Context ctx, PebbleTrace.Event e) {
+        switch (e.type) {
+            case PebbleTrace.EVENT_OUT:
+                Integer live = sent.poll();
+                if (live == null) {
+                    divergences++;
+                    Log.d(TAG, "Recorded packet " + e.tid + " was not sent");
+                } else {
+                    tids.put(e.tid, live);
+                }
+                break;
+
+            case PebbleTrace.EVENT_IN:
+                if (e.data == null) {
+                    break;
+                }
+                if (e.data.contains(Pebble.KEY_TRANSACTION_ID) && !e.data.contains(Pebble.KEY_CLICK)) {
+                    int tid = e.data.getUnsignedIntegerAsLong(Pebble.KEY_TRANSACTION_ID).intValue();
+                    int idx = tids.indexOfKey(tid);
+                    if (idx >= 0) {
+                        e.data.addUint32(Pebble.KEY_TRANSACTION_ID, tids.valueAt(idx));
+                        tids.removeAt(idx);
+                    }
+                }
+                pebble.receiveData(ctx, e.tid, e.data);
+                break;
+
+            case PebbleTrace.EVENT_ACK:
+                pebble.receiveAck(ctx, liveTid(e.tid));
+                break;
+
+            case PebbleTrace.EVENT_NACK:
+                pebble.receiveNack(ctx, liveTid(e.tid));
+                break;
+
+            case PebbleTrace.EVENT_CONNECT:
+                pebble.pebbleConnected(ctx);
+                break;
+
+            case PebbleTrace.EVENT_DISCONNECT:
+                pebble.pebbleDisconnected(ctx);
+                break;
+
+            default:
+                Log.e(TAG, "Unknown event " + e.type);
+                break;
+        }
+    }
+}
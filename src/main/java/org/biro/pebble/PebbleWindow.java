@@ -6,7 +6,9 @@ import android.util.Log;
 import com.getpebble.android.kit.util.PebbleDictionary;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Stack;
 
 /**
@@ -42,10 +44,19 @@ public class PebbleWindow {
     private final int STATE_UPDATING = 1;
     private final int STATE_PUSH = 2;
     private final int STATE_REQUEST_CLICKS = 3;
+    private final int STATE_CLEAR = 4;
 
-    private boolean needReset=false;
     private boolean needClear=false;
     private boolean wantClicks=false;
+    // Whether the watch has our click requests for the current handle.
+    private boolean clicksSent = false;
+
+    // Windows only get a handle on the watch once they're pushed or
+    // prebuilt, and give it up again if the watch runs out of memory.
+    // The root window and windows bound by id belong to the watch app,
+    // so they're always wanted and never given up.
+    private boolean wanted = false;
+    private long lastShown = 0;
 
     private final Stack<Integer> stateStack = new Stack<>();
 
@@ -53,12 +64,21 @@ public class PebbleWindow {
     private Pebble parent;
     private List<PebbleLayer> layers = new ArrayList<>();
 
+    // For setScreen(): the layers by key, the order the watch has them
+    // stacked in as far as we know, and the ones it should drop.
+    private Map<String, PebbleLayer> keyed = new HashMap<>();
+    private final List<PebbleLayer> onWatch = new ArrayList<>();
+    private final List<PebbleLayer> toDestroy = new ArrayList<>();
+
     public int getId() {
         return id;
     }
 
     public void setId(int id) {
         this.id = id;
+        if (id != 0) {
+            wanted = true;
+        }
     }
 
     private int id = 0;
@@ -93,15 +113,14 @@ public class PebbleWindow {
             PebbleDictionary data = new PebbleDictionary();
             data.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_GET_DICTIONARY_BY_ID);
             data.addUint32(Pebble.KEY_ID, id);
-            parent.sendMessage(ctx, new Pebble.PebbleFinishedCallback() {
+            parent.sendMessage(ctx, new Pebble.PebbleMessageCallback() {
                 @Override
-                public void processIncoming(Context ctx, int tid, PebbleDictionary resp, PebbleDictionary req) {
-                    int status = resp.getUnsignedIntegerAsLong(Pebble.KEY_STATUS).intValue();
-                    if (status == Pebble.STATUS_ERR) {
-                        Log.e(TAG, "Call Failed" + resp.getUnsignedIntegerAsLong(Pebble.KEY_ERROR_CODE));
-                        handleError(ctx, tid, resp, req);
+                public void processMessage(Context ctx, PebbleMessage msg, PebbleDictionary req) {
+                    if (msg.status == Pebble.STATUS_ERR) {
+                        Log.e(TAG, "Call Failed" + msg.errorCode);
+                        handleError(ctx, msg);
                     } else {
-                        wh = resp.getUnsignedIntegerAsLong(Pebble.KEY_RETURN_VALUE).intValue();
+                        wh = msg.returnValue;
                         updateStatus(ctx);
                     }
                 }
@@ -111,16 +130,14 @@ public class PebbleWindow {
 
         PebbleDictionary data = new PebbleDictionary();
         data.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_NEW_WINDOW);
-        parent.sendMessage(ctx, new Pebble.PebbleFinishedCallback() {
+        parent.sendMessage(ctx, new Pebble.PebbleMessageCallback() {
                     @Override
-                    public void processIncoming(Context ctx, int tid,
-                                                PebbleDictionary res, PebbleDictionary req) {
-                        int status = res.getUnsignedIntegerAsLong(Pebble.KEY_STATUS).intValue();
-                        if (status == Pebble.STATUS_ERR) {
-                            Log.e(TAG, "Call Failed" + res.getUnsignedIntegerAsLong(Pebble.KEY_ERROR_CODE));
-                            handleError(ctx, tid, res, req);
+                    public void processMessage(Context ctx, PebbleMessage msg, PebbleDictionary req) {
+                        if (msg.status == Pebble.STATUS_ERR) {
+                            Log.e(TAG, "Call Failed" + msg.errorCode);
+                            handleError(ctx, msg);
                         } else {
-                            wh = res.getUnsignedIntegerAsLong(Pebble.KEY_RETURN_VALUE).intValue();
+                            wh = msg.returnValue;
                             updateStatus(ctx);
                         }
                     }
@@ -155,6 +172,12 @@ public class PebbleWindow {
         }
     }
 
+    boolean hasPendingState() {
+        synchronized (stateStack) {
+            return !stateStack.isEmpty();
+        }
+    }
+
     private static PebbleWindow root = null;
 
     synchronized public static PebbleWindow getRootWindow() {
@@ -162,16 +185,34 @@ public class PebbleWindow {
             root = new PebbleWindow();
             root.wh = Pebble.ROOT_WINDOW_HANDLE;
             root.id = Pebble.ROOT_WINDOW_ID;
+            root.wanted = true;
         }
         return root;
     }
 
-    void handleError(Context ctx, int tid, PebbleDictionary resp, PebbleDictionary req) {
-        int error = resp.getUnsignedIntegerAsLong(Pebble.KEY_ERROR_CODE).intValue();
-        switch (error) {
+    void handleError(Context ctx, PebbleMessage msg) {
+        switch (msg.errorCode) {
+            case Pebble.ENACK_RECEIVED:
+                // Never got there.  Our state and the layer's changes are
+                // still pending, and Pebble.idle() resumes them after the
+                // retry delay, so there's nothing to clear.
+                break;
             case Pebble.ENOWINDOW:
-                needReset = true;
-                resetWindows(ctx);
+                parent.resetWindows(ctx);
+                break;
+            case Pebble.ENOMEM:
+                if (parent.isPrebuild(this) && !wanted) {
+                    // Not worth pushing anything else out for.
+                    parent.removePrebuild(this);
+                    clearState();
+                    break;
+                }
+                // Our state is still pending, and is retried once
+                // something has been freed.
+                if (!parent.evict(ctx, this)) {
+                    needClear = true;
+                    clearWindow(ctx);
+                }
                 break;
             default:
                 needClear = true;
@@ -183,6 +224,11 @@ public class PebbleWindow {
     // continues processing status after
     // something interrupted it.
     public void updateStatus(Context ctx) {
+        if (parent.isPrebuild(this) && !parent.isBuilding()) {
+            // Our next step waits its turn behind anything else.
+            parent.idle(ctx);
+            return;
+        }
         int cs = popState();
         switch (cs) {
             case STATE_NONE:
@@ -201,6 +247,10 @@ public class PebbleWindow {
                 requestClicks(ctx);
                 break;
 
+            case STATE_CLEAR:
+                clearWindow(ctx);
+                break;
+
             default:
                 Log.e(TAG, "Unknown state");
                 break;
@@ -215,12 +265,27 @@ public class PebbleWindow {
         }
 
         if (wh < 0) {
+            if (!wanted && !parent.isPrebuild(this)) {
+                // Nothing to show it on yet, the layers keep the changes.
+                updateStatus(ctx);
+                return;
+            }
             connect(ctx);
             addState(STATE_UPDATING);
             return;
         }
 
+        if (!toDestroy.isEmpty()) {
+            destroy(ctx, toDestroy.get(0));
+            addState(STATE_UPDATING);
+            return;
+        }
+
         for (PebbleLayer pl: layers) {
+            if (pl.getHandle() >= 0 && !onWatch.contains(pl)) {
+                // New layers go on top.
+                onWatch.add(pl);
+            }
             if (pl.changed()) {
                 if (pl.update(ctx, this)) {
                     addState(STATE_UPDATING);
@@ -229,13 +294,171 @@ public class PebbleWindow {
             }
         }
 
+        if (restack(ctx)) {
+            addState(STATE_UPDATING);
+            return;
+        }
+
         updateStatus(ctx);
 
     }
 
+    // Makes the window hold what screen describes, reusing the layers
+    // it already has under the same keys.
+    public void setScreen(Context ctx, PebbleScreen screen) {
+        Map<String, PebbleLayer> next = new HashMap<>();
+        List<PebbleLayer> order = new ArrayList<>();
+        for (PebbleScreen.Node<?> n : screen.nodes) {
+            PebbleLayer pl = n.bind(keyed.get(n.key));
+            next.put(n.key, pl);
+            order.add(pl);
+        }
+        for (PebbleLayer pl : layers) {
+            if (!order.contains(pl)) {
+                if (pl.getHandle() >= 0) {
+                    toDestroy.add(pl);
+                } else {
+                    onWatch.remove(pl);
+                }
+            }
+        }
+        layers = order;
+        keyed = next;
+        update(ctx);
+    }
+
+    private void destroy(Context ctx, final PebbleLayer pl) {
+        PebbleDictionary pd = new PebbleDictionary();
+        pd.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_DESTROY_LAYER);
+        pd.addUint32(pl.getHandleKey(), pl.getHandle());
+        send(ctx, pd, new Pebble.PebbleMessageCallback() {
+            @Override
+            public void processMessage(Context ctx, PebbleMessage msg, PebbleDictionary req) {
+                if (msg.status != Pebble.STATUS_OK && msg.errorCode != Pebble.ENOLAYER) {
+                    handleError(ctx, msg);
+                    return;
+                }
+                toDestroy.remove(pl);
+                onWatch.remove(pl);
+                pl.clearHandle();
+                updateStatus(ctx);
+            }
+        });
+    }
+
+    // Moves one layer towards the order in layers, if the watch has
+    // them some other way.  Returns true if it sent something.
+    private boolean restack(Context ctx) {
+        int n = onWatch.size();
+        if (n != layers.size()) {
+            return false; // still creating some.
+        }
+        int[] target = new int[n];
+        for (int i = 0; i < n; ++i) {
+            target[i] = layers.indexOf(onWatch.get(i));
+        }
+        int t = nextMove(target);
+        if (t < 0) {
+            return false;
+        }
+
+        final PebbleLayer pl = layers.get(t);
+        final PebbleLayer below = t == 0 ? null : layers.get(t - 1);
+        PebbleDictionary pd = new PebbleDictionary();
+        pd.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_MOVE_LAYER);
+        pd.addUint32(pl.getHandleKey(), pl.getHandle());
+        pd.addInt32(Pebble.KEY_LAYER_ABOVE, below == null ? -1 : below.getHandle());
+        send(ctx, pd, new Pebble.PebbleMessageCallback() {
+            @Override
+            public void processMessage(Context ctx, PebbleMessage msg, PebbleDictionary req) {
+                if (msg.status != Pebble.STATUS_OK) {
+                    handleError(ctx, msg);
+                    return;
+                }
+                onWatch.remove(pl);
+                onWatch.add(below == null ? 0 : onWatch.indexOf(below) + 1, pl);
+                updateStatus(ctx);
+            }
+        });
+        return true;
+    }
+
+    // target[i] is where the i'th layer from the bottom on the watch
+    // belongs.  Returns where the next layer to move belongs, to go just
+    // above the one that belongs under it, or -1 if they're all in
+    // place.  Layers already in the longest run that is in the right
+    // order stay put, so it takes as few moves as possible.
+    static int nextMove(int[] target) {
+        int n = target.length;
+
+        // longest increasing run of targets.
+        int[] len = new int[n];
+        int[] prev = new int[n];
+        int best = -1;
+        for (int i = 0; i < n; ++i) {
+            len[i] = 1;
+            prev[i] = -1;
+            for (int j = 0; j < i; ++j) {
+                if (target[j] < target[i] && len[j] + 1 > len[i]) {
+                    len[i] = len[j] + 1;
+                    prev[i] = j;
+                }
+            }
+            if (best < 0 || len[i] > len[best]) {
+                best = i;
+            }
+        }
+        if (best < 0 || len[best] == n) {
+            return -1;
+        }
+        boolean[] stays = new boolean[n];
+        for (int i = best; i >= 0; i = prev[i]) {
+            stays[i] = true;
+        }
+
+        // The lowest layer out of place goes first.
+        int t = n;
+        for (int i = 0; i < n; ++i) {
+            if (!stays[i] && target[i] < t) {
+                t = target[i];
+            }
+        }
+        return t;
+    }
+
+    // Declares that this window is likely to be pushed soon.  Its handle
+    // and layers are sent whenever the link is otherwise idle, so that a
+    // later push() is a single packet and the window shows up fully drawn.
+    public void prebuild(Context ctx) {
+        parent.addPrebuild(this);
+        parent.idle(ctx);
+    }
+
+    public void cancelPrebuild() {
+        parent.removePrebuild(this);
+    }
+
+    // true if the watch doesn't have all of this window yet.
+    boolean needsBuild() {
+        if (wh < 0) {
+            return true;
+        }
+        for (PebbleLayer pl: layers) {
+            if (pl.changed()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public void push(Context ctx) {
         PebbleDictionary pd = new PebbleDictionary();
 
+        // On screen now, the app keeps it up to date from here.
+        parent.removePrebuild(this);
+        wanted = true;
+        lastShown = System.currentTimeMillis();
+
         if (parent.isBusy()) {
             addState(STATE_PUSH);
             return;
@@ -243,12 +466,22 @@ public class PebbleWindow {
 
         pd.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_PUSH_WINDOW);
         if (wh < 0) {
+            // Build it all before it goes up.
             addState(STATE_PUSH);
+            if (wantClicks) {
+                addState(STATE_REQUEST_CLICKS);
+            }
+            addState(STATE_UPDATING);
             connect(ctx);
             return;
         }
 
-        send(ctx, pd, null);
+        if (wantClicks && !clicksSent) {
+            // Asked for while it was being prebuilt; Pebble.idle() sends
+            // them once it's up.
+            addState(STATE_REQUEST_CLICKS);
+        }
+        send(ctx, pd, (Pebble.PebbleMessageCallback) null);
     }
 
     public void addLayer(PebbleLayer pl) {
@@ -264,6 +497,55 @@ public class PebbleWindow {
         parent.sendMessage(ctx, pfc, pd);
     }
 
+    public void send(Context ctx, PebbleDictionary pd, Pebble.PebbleMessageCallback pmc) {
+        if (wh < 0) {
+            connect(ctx);
+            return;
+        }
+        pd.addUint32(Pebble.KEY_WINDOW_ID, wh);
+        parent.sendMessage(ctx, pmc, pd);
+    }
+
+    long getLastShown() {
+        return lastShown;
+    }
+
+    // Only windows we created can be destroyed to make room; the root
+    // and windows bound by id would have nothing to rebuild them from.
+    boolean isEvictable() {
+        return wh >= 0 && id == 0;
+    }
+
+    // Gives up the window's handle and its layers' so the watch can use
+    // the memory.  The phone keeps all their state, so a later push()
+    // builds it all again.
+    void evict(Context ctx) {
+        PebbleDictionary pd = new PebbleDictionary();
+        pd.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_DESTROY_WINDOW);
+        send(ctx, pd, new Pebble.PebbleMessageCallback() {
+            @Override
+            public void processMessage(Context ctx, PebbleMessage msg, PebbleDictionary req) {
+                if (msg.status != Pebble.STATUS_OK && msg.errorCode != Pebble.ENOWINDOW) {
+                    handleError(ctx, msg);
+                    return;
+                }
+                wh = -1;
+                clicksSent = false;
+                wanted = false;
+                for (PebbleLayer pl: layers) {
+                    pl.clearHandle();
+                }
+                onWatch.clear();
+                toDestroy.clear();
+                updateStatus(ctx);
+            }
+        });
+    }
+
+    Pebble getParent() {
+        return parent;
+    }
+
     public void setParent(Pebble p) {
         if (parent != null) {
             parent.removeChild(this);
@@ -272,46 +554,42 @@ public class PebbleWindow {
         parent.addChild(this);
     }
 
+    // Resets every window on the watch, not just this one.
     public void resetWindows(Context ctx) {
-        if (parent.isBusy()) {
-            return;
-        }
+        parent.resetWindows(ctx);
+    }
 
-        PebbleDictionary pd = new PebbleDictionary();
-        pd.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_RESET_WINDOWS);
+    // The watch dropped all our windows, see Pebble.resetWindows().
+    // Forget whatever was in progress and rebuild from scratch once
+    // the reset has gone out.
+    void forgetHandles() {
         clearState();
         addState(STATE_UPDATING);
         if (wantClicks) {
             addState(STATE_REQUEST_CLICKS);
         }
-        parent.sendMessage(ctx, new Pebble.PebbleFinishedCallback() {
-            @Override
-            public void processIncoming(Context ctx, int tid, PebbleDictionary resp, PebbleDictionary req) {
-                if (resp.getUnsignedIntegerAsLong(Pebble.KEY_STATUS) == Pebble.STATUS_ERR) {
-                    handleError(ctx, tid, resp, req);
-                } else {
-                    needReset = false;
-                    updateStatus(ctx);
-                }
-            }
-        }, pd);
         wh = -1;
+        clicksSent = false;
         for (PebbleLayer pl: layers) {
             pl.clearHandle();
         }
+        onWatch.clear();
+        toDestroy.clear();
     }
 
     public void clearWindow(Context ctx) {
         if (parent.isBusy()) {
+            needClear = true;
+            addState(STATE_CLEAR);
             return;
         }
         PebbleDictionary pd = new PebbleDictionary();
         pd.addUint32(Pebble.KEY_METHOD_ID, Pebble.FUNC_CLEAR_WINDOW);
-        send(ctx, pd, new Pebble.PebbleFinishedCallback() {
+        send(ctx, pd, new Pebble.PebbleMessageCallback() {
             @Override
-            public void processIncoming(Context ctx, int tid, PebbleDictionary resp, PebbleDictionary req) {
-                if (resp.getUnsignedIntegerAsLong(Pebble.KEY_STATUS) == Pebble.STATUS_ERR) {
-                    handleError(ctx, tid, resp, req);
+            public void processMessage(Context ctx, PebbleMessage msg, PebbleDictionary req) {
+                if (msg.status == Pebble.STATUS_ERR) {
+                    handleError(ctx, msg);
                 } else {
                     needClear = false;
                     updateStatus(ctx);
@@ -343,6 +621,11 @@ public class PebbleWindow {
         }
 
         if (wh < 0 ) {
+            if (!wanted) {
+                // Asked for when it's pushed, carry on with anything else.
+                updateStatus(ctx);
+                return;
+            }
             connect(ctx);
             addState(STATE_REQUEST_CLICKS);
             return;
@@ -357,12 +640,13 @@ public class PebbleWindow {
             }
             pd.addUint32(Pebble.KEY_BUTTON_0 + i, cr);
         }
-        send(ctx, pd, new Pebble.PebbleFinishedCallback() {
+        send(ctx, pd, new Pebble.PebbleMessageCallback() {
             @Override
-            public void processIncoming(Context ctx, int tid, PebbleDictionary resp, PebbleDictionary req) {
-                if (resp.getUnsignedIntegerAsLong(Pebble.KEY_STATUS).intValue() != Pebble.STATUS_OK) {
-                    handleError(ctx, tid, resp, req);
+            public void processMessage(Context ctx, PebbleMessage msg, PebbleDictionary req) {
+                if (msg.status != Pebble.STATUS_OK) {
+                    handleError(ctx, msg);
                 } else {
+                    clicksSent = true;
                     updateStatus(ctx);
                 }
             }